@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2018 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.gautelis.restitch;
+
+import com.sun.net.httpserver.HttpServer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Posts to a backend (a local stub, answering right away) the way activities do, i.e. through
+ * the pooled backend clients, circuit breaker and concurrency limiter.
+ * <p>
+ * java -jar benchmarks/target/benchmarks.jar BackendCallBenchmark -t 4
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BackendCallBenchmark {
+    private static final Payload PAYLOAD = Payload.of(BenchmarkFixtures.PAYLOAD);
+
+    @Param({"blocking", "async"})
+    public String transport;
+
+    private HttpServer backend;
+    private Transport _transport;
+    private URI uri;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        backend = BenchmarkFixtures.startBackend();
+        uri = BenchmarkFixtures.uriOf(backend, "/invoke-stub");
+        _transport = Transport.of(transport);
+
+        File specification = BenchmarkFixtures.writeSpecification(uri, "process-", 1, 1, _transport);
+        Application.configureWorkers(BenchmarkFixtures.configuration(specification));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        backend.stop(0);
+        BackendClient.shutdown();
+        AsyncBackendClient.shutdown();
+    }
+
+    @Benchmark
+    public boolean post(Blackhole blackhole) throws IOException {
+        boolean accepted = UncompensatedActivity.post(_transport, "benchmark", uri, PAYLOAD, blackhole::consume);
+        if (!accepted) {
+            throw new IllegalStateException("Backend did not accept request");
+        }
+        return accepted;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2018 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.gautelis.restitch;
+
+import com.sun.net.httpserver.HttpServer;
+import org.gautelis.muprocessmanager.MuProcessException;
+import org.gautelis.muprocessmanager.MuProcessManagementPolicy;
+import org.gautelis.muprocessmanager.MuProcessManager;
+import org.gautelis.muprocessmanager.MuProcessManagerFactory;
+
+import javax.sql.DataSource;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+
+/**
+ * What the benchmarks have in common: a local stub backend, process specifications and an
+ * embedded (Derby) process manager, so that benchmarks run without external services.
+ */
+/* package private */ final class BenchmarkFixtures {
+
+    /* package private */ static final byte[] REPLY = "{\"key\":\"value\"}".getBytes(StandardCharsets.UTF_8);
+    /* package private */ static final String PAYLOAD =
+            "{\"pizzaId\":101,\"ingredients\":[\"flour\",\"eggs\",\"milk\",\"salt\"],\"pizzaName\":\"Chichen (P)itza\"}";
+
+    private BenchmarkFixtures() {}
+
+    /**
+     * Starts a stub backend, answering all requests right away with a small JSON reply.
+     */
+    /* package private */ static HttpServer startBackend() throws IOException {
+        // Otherwise replies are delayed by Nagle's algorithm (meeting delayed ACKs), some 40ms per call
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        // Otherwise the stub closes kept-alive connections beyond 200, failing requests on stale connections
+        System.setProperty("sun.net.httpserver.maxIdleConnections", "1000");
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 1000);
+        server.createContext("/", exchange -> {
+            try {
+                exchange.getRequestBody().close();
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, REPLY.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(REPLY);
+                }
+            } finally {
+                exchange.close();
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        return server;
+    }
+
+    /* package private */ static URI uriOf(HttpServer backend, String path) {
+        return URI.create("http://localhost:" + backend.getAddress().getPort() + path);
+    }
+
+    /**
+     * Writes a process specification of a number of processes, each having a number of steps
+     * (every other step being compensated) towards backend.
+     * @return specification file, removed on exit
+     */
+    /* package private */ static File writeSpecification(
+            URI backend, String processPrefix, int processes, int steps, Transport transport
+    ) throws IOException {
+        return writeSpecification(backend, backend, processPrefix, processes, steps, transport);
+    }
+
+    /**
+     * Writes a process specification of a number of processes, each having a number of steps
+     * (every other step being compensated), invoking and compensating at separate backends.
+     * @return specification file, removed on exit
+     */
+    /* package private */ static File writeSpecification(
+            URI invocationBackend, URI compensationBackend, String processPrefix, int processes, int steps, Transport transport
+    ) throws IOException {
+        StringBuilder json = new StringBuilder("{\"processes\":{");
+        for (int p = 0; p < processes; p++) {
+            json.append(p > 0 ? "," : "").append('"').append(processPrefix).append(p).append("\":[");
+            for (int s = 0; s < steps; s++) {
+                json.append(s > 0 ? "," : "").append("{\"invocationURI\":\"").append(invocationBackend.resolve("invoke-" + s)).append('"');
+                if (0 == s % 2) {
+                    json.append(",\"compensationURI\":\"").append(compensationBackend.resolve("compensate-" + s)).append('"');
+                }
+                if (Transport.BLOCKING != transport) {
+                    json.append(",\"transport\":\"").append(transport.moniker()).append('"');
+                }
+                json.append('}');
+            }
+            json.append(']');
+        }
+        json.append("}}");
+
+        File file = File.createTempFile("restitch-benchmark-", ".json");
+        file.deleteOnExit();
+        Files.write(file.toPath(), json.toString().getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    /**
+     * @return configuration (with defaults) for specification, which is not watched
+     */
+    /* package private */ static Application.Configuration configuration(File specification) {
+        Map<String, String> settings = new HashMap<>();
+        settings.put("RESTITCH_PROCESS_SPECIFICATION_FILE", specification.getAbsolutePath());
+        settings.put("RESTITCH_WATCH_PROCESS_SPECIFICATION", "false");
+        return Application.getConfiguration(settings);
+    }
+
+    /* package private */ static MuProcessManagementPolicy managementPolicy() throws FileNotFoundException, MuProcessException {
+        return MuProcessManagerFactory.getManagementPolicy(Application.class, "management-policy.xml");
+    }
+
+    /**
+     * Starts a process manager, backed by an embedded Derby database (in the working directory).
+     */
+    /* package private */ static MuProcessManager startProcessManager(MuProcessManagementPolicy policy) throws MuProcessException {
+        DataSource dataSource = MuProcessManagerFactory.getDefaultDataSource("restitch-benchmark");
+        MuProcessManagerFactory.prepareInternalDatabase(dataSource);
+
+        MuProcessManager manager = MuProcessManagerFactory.getManager(
+                dataSource, MuProcessManagerFactory.getDefaultSqlStatements(), policy
+        );
+        manager.start();
+        return manager;
+    }
+
+    /* package private */ static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
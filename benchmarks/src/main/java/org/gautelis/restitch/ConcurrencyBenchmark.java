@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2018 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.gautelis.restitch;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares how many concurrent processes one node sustains when orchestrations are run on
+ * a pool of platform threads (as sized by msf4j 'threadCount') and when run on virtual threads.
+ * <p>
+ * Each process makes a number of sequential backend calls, through the pooled backend client,
+ * to a local stub having a fixed latency. The process manager (and its database) is not
+ * involved, so this measures the cost of parking threads in backend calls only.
+ * <p>
+ * mvn -f benchmarks/pom.xml compile exec:java -Dexec.mainClass=org.gautelis.restitch.ConcurrencyBenchmark \
+ *     -Dsteps=3 -Dlatency=50 -Dthreads=100 -Dconcurrency=100,1000,5000 -Dseconds=10 -Dwarmup=3
+ * <p>
+ * Virtual threads need Java 21 or later; on older runtimes only the platform pool is measured.
+ */
+public class ConcurrencyBenchmark {
+
+    private static final byte[] REPLY = "{\"key\":\"value\"}".getBytes(StandardCharsets.UTF_8);
+    private static final Payload PAYLOAD = Payload.of("{\"pizzaId\":101,\"pizzaName\":\"Chichen (P)itza\"}");
+
+    public static void main(String... args) throws Exception {
+        final int steps = Integer.getInteger("steps", 3);
+        final int latency = Integer.getInteger("latency", 50);
+        final int threads = Integer.getInteger("threads", 100);
+        final int seconds = Integer.getInteger("seconds", 10);
+        final int[] concurrencies = Arrays.stream(System.getProperty("concurrency", "100,1000,5000").split(","))
+                .map(String::trim).mapToInt(Integer::parseInt).toArray();
+        final int maxConcurrency = Arrays.stream(concurrencies).max().orElse(1);
+
+        HttpServer stub = startStub(latency, maxConcurrency);
+        URI uri = new URI("http://localhost:" + stub.getAddress().getPort() + "/invoke-stub");
+
+        // Don't let the connection pool (or backend concurrency limits) be the limiting factor
+        BackendClient.configure(maxConcurrency * 2, maxConcurrency * 2, 30);
+        ConcurrencyLimiter.configure(1, 0, 0);
+
+        System.out.printf("%d steps per process, %d ms backend latency, %d platform threads, %d s per run%n",
+                steps, latency, threads, seconds);
+        System.out.printf("Ideal throughput per concurrent process: %.1f processes/s%n%n", 1000.0 / (steps * latency));
+        System.out.printf("%-10s %12s %16s %16s %12s %12s%n",
+                "mode", "concurrency", "peak running", "processes/s", "mean ms", "max ms");
+
+        try {
+            // Warm up JIT, connections et al
+            Workers.configure("platform");
+            run("warmup", concurrencies[0], threads, steps, uri, Integer.getInteger("warmup", 3));
+
+            for (String mode : new String[]{"platform", "virtual"}) {
+                try {
+                    Workers.configure(mode);
+                } catch (IllegalArgumentException iae) {
+                    System.out.println(iae.getMessage());
+                    continue;
+                }
+
+                for (int concurrency : concurrencies) {
+                    run(mode, concurrency, threads, steps, uri, seconds);
+                }
+            }
+        } finally {
+            stub.stop(0);
+            BackendClient.shutdown();
+        }
+    }
+
+    private static void run(String mode, int concurrency, int threads, int steps, URI uri, int seconds) throws InterruptedException {
+        final ExecutorService executor = Workers.newProcessExecutor(threads);
+        final Semaphore inFlight = new Semaphore(concurrency);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger peakRunning = new AtomicInteger();
+        final AtomicLong completed = new AtomicLong();
+        final AtomicLong totalNanos = new AtomicLong();
+        final AtomicLong maxNanos = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+
+        final long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        final long start = System.nanoTime();
+        long id = 0;
+        while (System.nanoTime() < end) {
+            if (!inFlight.tryAcquire(10, TimeUnit.MILLISECONDS)) {
+                continue;
+            }
+            final String correlationId = "bench-" + (++id);
+            final long submitted = System.nanoTime();
+            executor.execute(() -> {
+                int now = running.incrementAndGet();
+                peakRunning.accumulateAndGet(now, Math::max);
+                try {
+                    for (int i = 0; i < steps; i++) {
+                        if (!UncompensatedActivity.post(correlationId, uri, PAYLOAD, null)) {
+                            failed.incrementAndGet();
+                            break;
+                        }
+                    }
+                } catch (Throwable t) {
+                    failed.incrementAndGet();
+                } finally {
+                    running.decrementAndGet();
+                    long elapsed = System.nanoTime() - submitted;
+                    completed.incrementAndGet();
+                    totalNanos.addAndGet(elapsed);
+                    maxNanos.accumulateAndGet(elapsed, Math::max);
+                    inFlight.release();
+                }
+            });
+        }
+        inFlight.acquire(concurrency); // drain
+        double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+        executor.shutdown();
+
+        long n = Math.max(1, completed.get());
+        System.out.printf("%-10s %12d %16d %16.1f %12.1f %12.1f%s%n",
+                mode, concurrency, peakRunning.get(), completed.get() / elapsedSeconds,
+                totalNanos.get() / 1e6 / n, maxNanos.get() / 1e6,
+                failed.get() > 0 ? "  (" + failed.get() + " failed)" : "");
+    }
+
+    private static HttpServer startStub(int latency, int maxConcurrency) throws Exception {
+        // Otherwise the stub closes kept-alive connections beyond 200, failing requests on stale connections
+        System.setProperty("sun.net.httpserver.maxIdleConnections", String.valueOf(maxConcurrency * 2));
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), maxConcurrency);
+        server.createContext("/invoke-stub", exchange -> {
+            try {
+                exchange.getRequestBody().close();
+                Thread.sleep(latency);
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, REPLY.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(REPLY);
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            } finally {
+                exchange.close();
+            }
+        });
+        // The stub should not be the bottleneck, so one thread per request
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        return server;
+    }
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2018 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.gautelis.restitch;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.gautelis.muprocessmanager.MuProcessManagementPolicy;
+import org.gautelis.muprocessmanager.MuProcessManager;
+import org.gautelis.restitch.stubbed.StubbedCompensationService;
+import org.gautelis.restitch.stubbed.StubbedInvocationService;
+import org.wso2.msf4j.MicroservicesRunner;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Answers "how many processes per second can one restitch node sustain with N steps and backend
+ * latency X?" by driving POST /process/{moniker}/{correlationId}, either
+ * <ul>
+ *     <li>open loop, at a fixed rate (-Drate=processes/s), latency being measured from when each
+ *     request was due (not when it was actually sent) so that queueing behind a saturated node is
+ *     not hidden (i.e. corrected for coordinated omission), or</li>
+ *     <li>closed loop, at a fixed concurrency (-Dconcurrency=clients), latency being corrected for
+ *     coordinated omission given the expected interval between requests of each client
+ *     (-Dinterval=ms, by default the mean latency during warmup).</li>
+ * </ul>
+ * Unless a node is given (-Dnode=http://host:port/ serving the stubbed services and a process
+ * -Dprocess=moniker), an embedded node is started, having one process of -Dsteps steps (every
+ * other step compensated) towards its own stubbed services. Either way, the stubbed services are
+ * configured to answer after -Dlatency ms, failing at -DfailureRate (or as configured by
+ * -Dbehaviour={...}, see README).
+ * <p>
+ * Latencies are recorded in HdrHistograms and reported per outcome: 200 (succeeded),
+ * 599 (failed and compensated), 500 (failed) and anything else.
+ * <p>
+ * mvn -f benchmarks/pom.xml compile exec:java -Dexec.mainClass=org.gautelis.restitch.LoadGenerator \
+ *     -Dsteps=3 -Dlatency=20 -Drate=200 -Dseconds=30 -Dwarmup=5
+ * <p>
+ * mvn -f benchmarks/pom.xml compile exec:java -Dexec.mainClass=org.gautelis.restitch.LoadGenerator \
+ *     -Dsteps=3 -Dlatency=20 -Dconcurrency=50 -Dseconds=30 -Dwarmup=5 -Dhgrm=closed-loop.hgrm
+ */
+public class LoadGenerator {
+    private static final byte[] PAYLOAD = BenchmarkFixtures.PAYLOAD.getBytes(StandardCharsets.UTF_8);
+
+    // Latencies are recorded in microseconds, up to an hour
+    private static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.HOURS.toMicros(1);
+    private static final int SIGNIFICANT_DIGITS = 3;
+
+    private enum Outcome {
+        SUCCEEDED("200 succeeded"),
+        COMPENSATED("599 compensated"),
+        FAILED("500 failed"),
+        OTHER("other status"),
+        ERROR("no response");
+
+        private final String label;
+        private final Recorder recorder = new Recorder(HIGHEST_TRACKABLE_MICROS, SIGNIFICANT_DIGITS);
+
+        Outcome(String label) {
+            this.label = label;
+        }
+
+        private static Outcome of(int status) {
+            switch (status) {
+                case 200:
+                    return SUCCEEDED;
+                case 599:
+                    return COMPENSATED;
+                case 500:
+                    return FAILED;
+                default:
+                    return OTHER;
+            }
+        }
+    }
+
+    private final CloseableHttpClient client;
+    private final String processURI;
+
+    // Correlation IDs are unique across runs, since the database is kept
+    private final String prefix = UUID.randomUUID().toString();
+    private final AtomicLong sequence = new AtomicLong();
+
+    private LoadGenerator(CloseableHttpClient client, String processURI) {
+        this.client = client;
+        this.processURI = processURI;
+    }
+
+    public static void main(String... args) throws Exception {
+        final int steps = Integer.getInteger("steps", 3);
+        final int latency = Integer.getInteger("latency", 20);
+        final String failureRate = System.getProperty("failureRate", "0.0");
+        final String behaviour = System.getProperty("behaviour",
+                "{\"latency\":\"fixed\",\"latencyMillis\":" + latency + ",\"failureRate\":" + failureRate + "}");
+        final int rate = Integer.getInteger("rate", 0);
+        final int concurrency = Integer.getInteger("concurrency", 50);
+        final int threads = Integer.getInteger("threads", 1000);
+        final int seconds = Integer.getInteger("seconds", 30);
+        final int warmup = Integer.getInteger("warmup", 5);
+        final String transport = System.getProperty("transport", Transport.BLOCKING.moniker());
+        final String hgrm = System.getProperty("hgrm");
+
+        final int connections = rate > 0 ? threads : concurrency;
+        Node node = null;
+        try (CloseableHttpClient client = HttpClients.custom()
+                .setMaxConnTotal(connections).setMaxConnPerRoute(connections).build()) {
+
+            URI nodeURI;
+            String process;
+            if (null != System.getProperty("node")) {
+                nodeURI = URI.create(System.getProperty("node"));
+                process = System.getProperty("process", "process-0");
+            } else {
+                node = Node.start(steps, Transport.of(transport));
+                nodeURI = node.uri;
+                process = "process-0";
+            }
+
+            configureStub(client, nodeURI.resolve("/invoke-stub/behaviour"), behaviour);
+            configureStub(client, nodeURI.resolve("/compensate-stub/behaviour"), behaviour);
+
+            LoadGenerator generator = new LoadGenerator(client, nodeURI.resolve("/process/" + process + "/").toString());
+
+            if (rate > 0) {
+                System.out.printf("Open loop: %d processes/s for %d s (after %d s warmup), %s%n", rate, seconds, warmup, behaviour);
+                generator.openLoop(rate, threads, warmup);
+                reset();
+                long elapsed = generator.openLoop(rate, threads, seconds);
+                report(System.out, elapsed, hgrm);
+
+            } else {
+                System.out.printf("Closed loop: %d clients for %d s (after %d s warmup), %s%n", concurrency, seconds, warmup, behaviour);
+                generator.closedLoop(concurrency, warmup, 0L);
+                long interval = Long.getLong("interval", -1L) >= 0L
+                        ? TimeUnit.MILLISECONDS.toMicros(Long.getLong("interval"))
+                        : meanMicros(reset());
+                System.out.printf("Expected interval between requests of each client: %.1f ms%n", interval / 1000.0);
+                long elapsed = generator.closedLoop(concurrency, seconds, interval);
+                report(System.out, elapsed, hgrm);
+            }
+        } finally {
+            if (null != node) {
+                node.stop();
+            }
+        }
+    }
+
+    /*
+     * Issues requests at rate, each request being due at a fixed point in time.
+     * @return elapsed time in nanoseconds
+     */
+    private long openLoop(int rate, int threads, int seconds) throws InterruptedException {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final long intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+        final long start = System.nanoTime();
+        final long end = start + TimeUnit.SECONDS.toNanos(seconds);
+
+        for (long i = 0; ; i++) {
+            final long due = start + i * intervalNanos;
+            if (due >= end) {
+                break;
+            }
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0L) {
+                LockSupport.parkNanos(wait);
+            }
+            // If we are late (or the executor is saturated), the delay is part of the latency
+            executor.execute(() -> invoke(due, 0L));
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.HOURS);
+        return System.nanoTime() - start;
+    }
+
+    /*
+     * Issues requests from a number of clients, each client issuing its next request when the
+     * previous one completed.
+     * @param expectedIntervalMicros expected interval between requests of each client (0 if unknown)
+     * @return elapsed time in nanoseconds
+     */
+    private long closedLoop(int concurrency, int seconds, long expectedIntervalMicros) throws InterruptedException {
+        final ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        final long start = System.nanoTime();
+        final long end = start + TimeUnit.SECONDS.toNanos(seconds);
+
+        for (int i = 0; i < concurrency; i++) {
+            executor.execute(() -> {
+                while (System.nanoTime() < end) {
+                    invoke(System.nanoTime(), expectedIntervalMicros);
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.HOURS);
+        return System.nanoTime() - start;
+    }
+
+    private void invoke(long due, long expectedIntervalMicros) {
+        HttpPost post = new HttpPost(processURI + prefix + "-" + sequence.incrementAndGet());
+        post.setEntity(new ByteArrayEntity(PAYLOAD, ContentType.APPLICATION_JSON));
+
+        Outcome outcome;
+        try (CloseableHttpResponse response = client.execute(post)) {
+            EntityUtils.consume(response.getEntity());
+            outcome = Outcome.of(response.getStatusLine().getStatusCode());
+        } catch (IOException ioe) {
+            outcome = Outcome.ERROR;
+        }
+
+        long micros = Math.min(HIGHEST_TRACKABLE_MICROS, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - due));
+        if (expectedIntervalMicros > 0L) {
+            outcome.recorder.recordValueWithExpectedInterval(micros, expectedIntervalMicros);
+        } else {
+            outcome.recorder.recordValue(micros);
+        }
+    }
+
+    /*
+     * Discards everything recorded so far.
+     * @return what was discarded, all outcomes together
+     */
+    private static Histogram reset() {
+        Histogram all = new Histogram(HIGHEST_TRACKABLE_MICROS, SIGNIFICANT_DIGITS);
+        for (Outcome outcome : Outcome.values()) {
+            all.add(outcome.recorder.getIntervalHistogram());
+        }
+        return all;
+    }
+
+    private static long meanMicros(Histogram histogram) {
+        return histogram.getTotalCount() > 0 ? Math.round(histogram.getMean()) : 0L;
+    }
+
+    private static void report(PrintStream out, long elapsedNanos, String hgrm) throws FileNotFoundException {
+        double elapsedSeconds = elapsedNanos / 1e9;
+        Histogram all = new Histogram(HIGHEST_TRACKABLE_MICROS, SIGNIFICANT_DIGITS);
+
+        out.printf("%n%-16s %10s %12s %10s %10s %10s %10s %10s %10s%n",
+                "outcome", "count", "per second", "mean ms", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        for (Outcome outcome : Outcome.values()) {
+            Histogram histogram = outcome.recorder.getIntervalHistogram();
+            all.add(histogram);
+            if (histogram.getTotalCount() > 0) {
+                report(out, outcome.label, histogram, elapsedSeconds);
+            }
+        }
+        report(out, "all", all, elapsedSeconds);
+
+        if (null != hgrm) {
+            // Plot with e.g. http://hdrhistogram.github.io/HdrHistogram/plotFiles.html
+            try (PrintStream file = new PrintStream(new File(hgrm))) {
+                all.outputPercentileDistribution(file, 1000.0);
+            }
+            out.printf("%nLatency distribution (all outcomes) written to %s%n", hgrm);
+        }
+    }
+
+    private static void report(PrintStream out, String label, Histogram histogram, double elapsedSeconds) {
+        out.printf("%-16s %10d %12.1f %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+                label, histogram.getTotalCount(), histogram.getTotalCount() / elapsedSeconds,
+                histogram.getMean() / 1000.0,
+                histogram.getValueAtPercentile(50.0) / 1000.0,
+                histogram.getValueAtPercentile(90.0) / 1000.0,
+                histogram.getValueAtPercentile(99.0) / 1000.0,
+                histogram.getValueAtPercentile(99.9) / 1000.0,
+                histogram.getMaxValue() / 1000.0);
+    }
+
+    private static void configureStub(CloseableHttpClient client, URI uri, String behaviour) throws IOException {
+        HttpPut put = new HttpPut(uri);
+        put.setEntity(new StringEntity(behaviour, ContentType.APPLICATION_JSON));
+        try (CloseableHttpResponse response = client.execute(put)) {
+            String body = EntityUtils.toString(response.getEntity());
+            if (200 != response.getStatusLine().getStatusCode()) {
+                throw new IllegalArgumentException("Could not configure stubbed service " + uri + ": " + body);
+            }
+        }
+    }
+
+    /*
+     * An embedded node, running processes against its own stubbed services.
+     */
+    private static class Node {
+        private final MuProcessManager manager;
+        private final MicroservicesRunner runner;
+        private final URI uri;
+
+        private Node(MuProcessManager manager, MicroservicesRunner runner, URI uri) {
+            this.manager = manager;
+            this.runner = runner;
+            this.uri = uri;
+        }
+
+        private static Node start(int steps, Transport transport) throws Exception {
+            URI uri = URI.create("http://localhost:" + BenchmarkFixtures.freePort() + "/");
+            File specification = BenchmarkFixtures.writeSpecification(
+                    uri.resolve("/invoke-stub/"), uri.resolve("/compensate-stub/"), "process-", 1, steps, transport
+            );
+            Application.Configuration configuration = BenchmarkFixtures.configuration(specification);
+            Application.configureWorkers(configuration);
+
+            MuProcessManagementPolicy policy = BenchmarkFixtures.managementPolicy();
+            MuProcessManager manager = BenchmarkFixtures.startProcessManager(policy);
+
+            MicroservicesRunner runner = new MicroservicesRunner(uri.getPort())
+                    .deploy(new ProcessService(manager, policy, new ProcessMonikers(configuration.processMonikerIndexSize()), configuration))
+                    .deploy(new StubbedInvocationService())
+                    .deploy(new StubbedCompensationService());
+            runner.start();
+            return new Node(manager, runner, uri);
+        }
+
+        private void stop() {
+            runner.stop();
+            manager.stop();
+            BackendClient.shutdown();
+            AsyncBackendClient.shutdown();
+        }
+    }
+}
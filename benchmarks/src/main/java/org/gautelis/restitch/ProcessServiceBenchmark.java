@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2018 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.gautelis.restitch;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.gautelis.muprocessmanager.MuProcessManagementPolicy;
+import org.gautelis.muprocessmanager.MuProcessManager;
+import org.openjdk.jmh.annotations.*;
+import org.wso2.msf4j.MicroservicesRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Invokes a process end-to-end, i.e. over HTTP to the process service, which runs the process
+ * (persisted by the process manager in an embedded database) against a local stub backend.
+ * <p>
+ * java -jar benchmarks/target/benchmarks.jar ProcessServiceBenchmark -t 8
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProcessServiceBenchmark {
+    private static final byte[] PAYLOAD = BenchmarkFixtures.PAYLOAD.getBytes(StandardCharsets.UTF_8);
+
+    @Param({"3"})
+    public int steps;
+
+    @Param({"blocking", "async"})
+    public String transport;
+
+    private HttpServer backend;
+    private MuProcessManager manager;
+    private MicroservicesRunner runner;
+    private CloseableHttpClient client;
+    private String processURI;
+
+    // Correlation IDs are unique across runs, since the database is kept
+    private final String prefix = UUID.randomUUID().toString();
+    private final AtomicLong sequence = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        backend = BenchmarkFixtures.startBackend();
+        File specification = BenchmarkFixtures.writeSpecification(
+                BenchmarkFixtures.uriOf(backend, "/"), "process-", 1, steps, Transport.of(transport)
+        );
+        Application.Configuration configuration = BenchmarkFixtures.configuration(specification);
+        Application.configureWorkers(configuration);
+
+        MuProcessManagementPolicy policy = BenchmarkFixtures.managementPolicy();
+        manager = BenchmarkFixtures.startProcessManager(policy);
+
+        int port = BenchmarkFixtures.freePort();
+        runner = new MicroservicesRunner(port)
+                .deploy(new ProcessService(manager, policy, new ProcessMonikers(configuration.processMonikerIndexSize()), configuration));
+        runner.start();
+
+        client = HttpClients.custom().setMaxConnTotal(1000).setMaxConnPerRoute(1000).build();
+        processURI = "http://localhost:" + port + "/process/process-0/";
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        client.close();
+        runner.stop();
+        manager.stop();
+        backend.stop(0);
+        BackendClient.shutdown();
+        AsyncBackendClient.shutdown();
+    }
+
+    @Benchmark
+    public int invokeProcess() throws IOException {
+        HttpPost post = new HttpPost(processURI + prefix + "-" + sequence.incrementAndGet());
+        post.setEntity(new ByteArrayEntity(PAYLOAD, ContentType.APPLICATION_JSON));
+        try (CloseableHttpResponse response = client.execute(post)) {
+            String body = EntityUtils.toString(response.getEntity());
+            int status = response.getStatusLine().getStatusCode();
+            if (200 != status) {
+                // Measuring anything but successful processes would be misleading
+                throw new IllegalStateException("Process failed with status " + status + ": " + body);
+            }
+            return status;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2018 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.gautelis.restitch;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads (parses, validates and compiles) a process specification, and looks up processes in it.
+ * <p>
+ * java -jar benchmarks/target/benchmarks.jar ProcessSpecificationBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProcessSpecificationBenchmark {
+
+    @Param({"10", "1000"})
+    public int processes;
+
+    @Param({"5"})
+    public int steps;
+
+    private Application.Configuration configuration;
+    private ProcessSpecification specification;
+    private String[] monikers;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next = 0;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        File file = BenchmarkFixtures.writeSpecification(URI.create("http://localhost:8080/"), "process-", processes, steps, Transport.BLOCKING);
+        configuration = BenchmarkFixtures.configuration(file);
+        specification = ProcessSpecification.getSpecification(configuration);
+
+        monikers = new String[processes];
+        for (int i = 0; i < processes; i++) {
+            monikers[i] = "process-" + i;
+        }
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public ProcessSpecification load() throws IOException {
+        return ProcessSpecification.getSpecification(configuration);
+    }
+
+    @Benchmark
+    public Object lookup(Cursor cursor) {
+        String moniker = monikers[cursor.next];
+        cursor.next = (cursor.next + 1) % monikers.length;
+        return specification.getPlan(moniker).orElse(null);
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2018 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.gautelis.restitch;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.gautelis.muprocessmanager.MuProcess;
+import org.gautelis.muprocessmanager.MuProcessDetails;
+import org.gautelis.muprocessmanager.MuProcessException;
+import org.gautelis.muprocessmanager.MuProcessManager;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialises entities answered by the services (process details and process specifications)
+ * through the object mapper of {@link ObjectMapperContextResolver}.
+ * <p>
+ * java -jar benchmarks/target/benchmarks.jar SerialisationBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerialisationBenchmark {
+
+    @Param({"100"})
+    public int details;
+
+    private ObjectMapper mapper;
+    private MuProcessManager manager;
+    private MuProcessDetails processDetails;
+    private List<MuProcessDetails> processDetailsList;
+    private List<ProcessSpecification.Specification> specificationList;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, MuProcessException {
+        mapper = new ObjectMapperContextResolver().getContext(Object.class);
+
+        // Details of processes, as kept by the process manager
+        manager = BenchmarkFixtures.startProcessManager(BenchmarkFixtures.managementPolicy());
+        String prefix = UUID.randomUUID().toString();
+        processDetailsList = new ArrayList<>(details);
+        for (int i = 0; i < details; i++) {
+            String correlationId = prefix + "-" + i;
+            MuProcess process = manager.newProcess(correlationId);
+            process.finished();
+
+            Optional<MuProcessDetails> _details = manager.getProcessDetails(correlationId);
+            if (!_details.isPresent()) {
+                throw new IllegalStateException("No details of process " + correlationId);
+            }
+            processDetailsList.add(_details.get());
+        }
+        processDetails = processDetailsList.get(0);
+
+        File file = BenchmarkFixtures.writeSpecification(URI.create("http://localhost:8080/"), "process-", 1, 5, Transport.BLOCKING);
+        specificationList = ProcessSpecification.getSpecification(BenchmarkFixtures.configuration(file))
+                .getSpecification("process-0").get();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        manager.stop();
+    }
+
+    @Benchmark
+    public byte[] processDetails() throws JsonProcessingException {
+        return mapper.writeValueAsBytes(processDetails);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public byte[] processDetailsList() throws JsonProcessingException {
+        return mapper.writeValueAsBytes(processDetailsList);
+    }
+
+    @Benchmark
+    public byte[] processSpecification() throws JsonProcessingException {
+        return mapper.writeValueAsBytes(specificationList);
+    }
+}
@@ -17,18 +17,28 @@
  */
 package org.gautelis.restitch;
 
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
 import io.swagger.annotations.*;
 import org.gautelis.muprocessmanager.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.wso2.carbon.metrics.core.annotation.Timed;
+import org.wso2.msf4j.Request;
 import org.wso2.msf4j.analytics.httpmonitoring.HTTPMonitored;
 
 import javax.ws.rs.*;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
-import java.util.Collection;
-import java.util.Optional;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
 
 @Api(value = "abandoned")
 @SwaggerDefinition(
@@ -46,10 +56,18 @@ import java.util.Optional;
 public class AbandonedProcessService {
     private static final Logger log = LoggerFactory.getLogger(AbandonedProcessService.class);
 
+    private static final String NDJSON = "application/x-ndjson";
+    private static final Gson gson = new GsonBuilder().create();
+
     private final MuProcessManager manager;
+    private final ExecutorService bulkExecutor;
 
-    /* package private */ AbandonedProcessService(MuProcessManager manager) {
+    /**
+     * @param bulkParallelism max number of concurrent resets in bulk operations
+     */
+    /* package private */ AbandonedProcessService(MuProcessManager manager, int bulkParallelism) {
         this.manager = manager;
+        this.bulkExecutor = Workers.newMaintenanceExecutor(bulkParallelism);
     }
 
     /**
@@ -141,5 +159,143 @@ public class AbandonedProcessService {
             return Response.status(500).type(MediaType.TEXT_PLAIN_TYPE).entity(info).build();
         }
     }
-}
 
+    /**
+     * Reset a set of abandoned processes, either those identified by correlation ID (as a JSON
+     * array in the request body) or -- if no correlation IDs are provided -- all abandoned
+     * processes created within a time window (since and/or until). Since this is destructive,
+     * resetting all abandoned processes regardless of when they were created must be asked for
+     * explicitly (all=true); a request without any selection is refused.
+     * <p>
+     * Processes are reset in chunks, a bounded number at a time, and the outcome for each
+     * process is streamed back as soon as its chunk is done, as one JSON object per line.
+     * <p>
+     * curl -X POST -H "Content-Type:application/json" -d '["775113c6-8f7a-4f0d-b5fd-9139727ef224"]' http://localhost:8080/abandoned/reset
+     * <p>
+     * curl -X POST "http://localhost:8080/abandoned/reset?since=2018-11-01T00:00:00Z&until=2018-11-01T12:00:00Z"
+     * <p>
+     * curl -X POST "http://localhost:8080/abandoned/reset?all=true"
+     */
+    @POST
+    @Timed
+    @Path("/reset")
+    @ApiOperation(
+            value = "Reset abandoned processes, effectively removing all traces of them having occurred",
+            notes = "Outcomes are streamed back, one JSON object per line")
+    @Produces({NDJSON, MediaType.TEXT_PLAIN})
+    @ApiResponses(value = {
+            @ApiResponse(code = 200 /* OK */, message = "Outcome per process"),
+            @ApiResponse(code = 400 /* Bad Request */, message = "Invalid (or no) correlation IDs or filter"),
+            @ApiResponse(code = 598 /* Request failure */, message = "Failed to process request")})
+    public Response resetAbandonedProcesses(
+            @ApiParam(value = "Created since (ISO-8601)", required = false) @QueryParam("since") String since,
+            @ApiParam(value = "Created before (ISO-8601)", required = false) @QueryParam("until") String until,
+            @ApiParam(value = "All abandoned processes", required = false) @QueryParam("all") @DefaultValue("false") boolean all,
+            @ApiParam(value = "Chunk size", required = false) @QueryParam("chunk") @DefaultValue("100") int chunkSize,
+            @ApiParam(value = "CorrelationIds", required = false) @Context Request request
+    ) {
+        final List<String> correlationIds;
+        try {
+            if (chunkSize < 1) {
+                throw new IllegalArgumentException("Chunk size must be positive");
+            }
+
+            String[] requested;
+            try (Reader reader = new InputStreamReader(request.getMessageContentStream(), StandardCharsets.UTF_8)) {
+                requested = gson.fromJson(reader, String[].class);
+            } catch (JsonParseException jpe) {
+                throw new IllegalArgumentException("Expected JSON array of correlation IDs: " + jpe.getMessage());
+            }
+
+            if (null != requested && requested.length > 0) {
+                correlationIds = Arrays.asList(requested);
+            } else {
+                Instant _since = ProcessDetailsPage.parseInstant("since", since);
+                Instant _until = ProcessDetailsPage.parseInstant("until", until);
+                if (null == _since && null == _until && !all) {
+                    throw new IllegalArgumentException(
+                            "Provide correlation IDs, a time window (since and/or until) or all=true to reset all abandoned processes"
+                    );
+                }
+
+                correlationIds = new ArrayList<>();
+                for (MuProcessDetails details : manager.getAbandonedProcessDetails()) {
+                    long created = null != details.getCreated() ? details.getCreated().getTime() : 0L;
+                    if ((null == _since || created >= _since.toEpochMilli()) && (null == _until || created < _until.toEpochMilli())) {
+                        correlationIds.add(details.getCorrelationId());
+                    }
+                }
+            }
+        } catch (IllegalArgumentException iae) {
+            String info = iae.getMessage();
+            log.debug(info);
+            return Response.status(400).type(MediaType.TEXT_PLAIN_TYPE).entity(info).build();
+
+        } catch (MuProcessException mpe) {
+            String info = "Failed to retrieve abandoned process details: ";
+            info += mpe.getMessage();
+            log.info(info, mpe);
+            return Response.status(598).type(MediaType.TEXT_PLAIN_TYPE).entity(info).build();
+
+        } catch (IOException ioe) {
+            String info = "Could not read correlation IDs: " + ioe.getMessage();
+            log.info(info);
+            return Response.status(400).type(MediaType.TEXT_PLAIN_TYPE).entity(info).build();
+        }
+
+        StreamingOutput outcomes = os -> {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8));
+            for (int start = 0; start < correlationIds.size(); start += chunkSize) {
+                List<CompletableFuture<Map<String, String>>> chunk = new ArrayList<>(chunkSize);
+                for (String correlationId : correlationIds.subList(start, Math.min(start + chunkSize, correlationIds.size()))) {
+                    chunk.add(CompletableFuture.supplyAsync(() -> reset(correlationId), bulkExecutor));
+                }
+                for (CompletableFuture<Map<String, String>> outcome : chunk) {
+                    writer.write(gson.toJson(outcome.join()));
+                    writer.write('\n');
+                }
+                writer.flush(); // If client has gone away, we stop here
+            }
+            writer.flush();
+        };
+        return Response.ok(outcomes, NDJSON).build();
+    }
+
+    private Map<String, String> reset(String correlationId) {
+        Map<String, String> outcome = new LinkedHashMap<>();
+        outcome.put("correlationId", correlationId);
+        try {
+            // Even if listed as abandoned, the process may have changed state since
+            Optional<MuProcessState> state = manager.getProcessState(correlationId);
+            if (!state.isPresent()) {
+                return outcome(outcome, "unknown", null);
+            }
+            if (state.get() != MuProcessState.ABANDONED) {
+                return outcome(outcome, "not-abandoned", state.get().name());
+            }
+
+            // Absent (or false) indicates that someone else reset the process, doing our bidding
+            manager.resetProcess(correlationId);
+            return outcome(outcome, "reset", null);
+
+        } catch (MuProcessException mpe) {
+            String info = String.format("Failed to reset process (referred to by correlation ID \"%s\"): %s", correlationId, mpe.getMessage());
+            log.info(info, mpe);
+            return outcome(outcome, "failed", mpe.getMessage());
+
+        } catch (Throwable t) {
+            String info = String.format("Failed to reset process (referred to by correlation ID \"%s\"): %s", correlationId, t.getMessage());
+            log.warn(info, t);
+            return outcome(outcome, "failed", t.getMessage());
+        }
+    }
+
+    private static Map<String, String> outcome(Map<String, String> outcome, String result, String detail) {
+        Metrics.counter(Metrics.series("restitch_bulk_reset_total", "outcome", result)).increment();
+        outcome.put("outcome", result);
+        if (null != detail) {
+            outcome.put("detail", detail);
+        }
+        return outcome;
+    }
+}
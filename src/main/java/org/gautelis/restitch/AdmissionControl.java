@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2018 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.gautelis.restitch;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides whether a process invocation is admitted or not, before anything is persisted.
+ * <p>
+ * Invocations are shed early, rather than letting them pile up until threads and database
+ * connections are exhausted, when
+ * <ul>
+ *     <li>the process has an invocation quota (a token bucket) that is used up,</li>
+ *     <li>the number of processes being run synchronously is at its limit (for longer than
+ *     a brief wait), or</li>
+ *     <li>asynchronous processes currently wait too long in queue before being run.</li>
+ * </ul>
+ */
+/* package private */ class AdmissionControl {
+
+    /**
+     * Why an invocation was not admitted, and when it may be re-tried.
+     */
+    /* package private */ static class Rejection {
+        /* package private */ final String reason;
+        /* package private */ final String message;
+        /* package private */ final long retryAfterSeconds;
+
+        private Rejection(String reason, String message, long retryAfterNanos) {
+            this.reason = reason;
+            this.message = message;
+            this.retryAfterSeconds = Math.max(1L, TimeUnit.NANOSECONDS.toSeconds(retryAfterNanos + TimeUnit.SECONDS.toNanos(1) - 1));
+
+            Metrics.counter(Metrics.series("restitch_admission_rejected_total", "reason", reason)).increment();
+        }
+    }
+
+    /*
+     * Token bucket, refilled continuously at 'rate' tokens per second up to 'burst' tokens.
+     */
+    private static class TokenBucket {
+        private final ProcessSpecification.Quota quota;
+        private final double nanosPerToken;
+        private final double burst;
+
+        private double tokens;
+        private long refilled = System.nanoTime();
+
+        private TokenBucket(ProcessSpecification.Quota quota) {
+            this.quota = quota;
+            this.nanosPerToken = TimeUnit.SECONDS.toNanos(1) / quota.getRate();
+            this.burst = quota.getBurst();
+            this.tokens = burst;
+        }
+
+        /*
+         * @return 0 if a token was taken, otherwise nanos until a token is available
+         */
+        private synchronized long tryTake() {
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - refilled) / nanosPerToken);
+            refilled = now;
+            if (tokens >= 1.0) {
+                tokens -= 1.0;
+                return 0L;
+            }
+            return (long) ((1.0 - tokens) * nanosPerToken);
+        }
+
+        private synchronized void giveBack() {
+            tokens = Math.min(burst, tokens + 1.0);
+        }
+    }
+
+    private volatile ProcessSpecification specification;
+    private final Map<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+
+    private final int maxProcesses;
+    private final Semaphore processes;
+    private final long waitNanos;
+    private final long maxQueueWaitNanos;
+
+    /**
+     * @param maxProcesses max number of processes run synchronously at any time, 0 meaning no limit
+     * @param waitMillis max time an invocation waits for a running process to finish
+     * @param maxQueueWaitMillis max (recent) queue wait of asynchronous processes, 0 meaning no limit
+     */
+    /* package private */ AdmissionControl(ProcessSpecification specification, int maxProcesses, int waitMillis, int maxQueueWaitMillis) {
+        if (maxProcesses < 0 || waitMillis < 0 || maxQueueWaitMillis < 0) {
+            String info = "Illegal admission control configuration: ";
+            info += "max " + maxProcesses + " processes, wait " + waitMillis + "ms, max queue wait " + maxQueueWaitMillis + "ms";
+            throw new IllegalArgumentException(info);
+        }
+        this.specification = specification;
+        this.maxProcesses = maxProcesses;
+        this.processes = new Semaphore(maxProcesses > 0 ? maxProcesses : Integer.MAX_VALUE);
+        this.waitNanos = TimeUnit.MILLISECONDS.toNanos(waitMillis);
+        this.maxQueueWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxQueueWaitMillis);
+
+        if (maxProcesses > 0) {
+            Metrics.gauge("restitch_processes_running", () -> maxProcesses - processes.availablePermits());
+            Metrics.gauge("restitch_processes_max", () -> maxProcesses);
+        }
+    }
+
+    /**
+     * Applies quotas of a reloaded process specification. Quotas that did not change are
+     * kept as is.
+     */
+    /* package private */ void configure(ProcessSpecification specification) {
+        this.specification = specification;
+        buckets.entrySet().removeIf(e -> {
+            Optional<ProcessSpecification.Quota> quota = specification.getQuota(e.getKey());
+            ProcessSpecification.Quota current = e.getValue().quota;
+            return !quota.isPresent() || quota.get().getRate() != current.getRate() || quota.get().getBurst() != current.getBurst();
+        });
+    }
+
+    /**
+     * Takes one invocation from the quota of process, if it has a quota. This is done once
+     * there is room to run the process, so that invocations shed for other reasons do not
+     * use up the quota.
+     */
+    /* package private */ Optional<Rejection> checkQuota(String processMoniker) {
+        Optional<ProcessSpecification.Quota> quota = specification.getQuota(processMoniker);
+        if (!quota.isPresent()) {
+            return Optional.empty();
+        }
+        long wait = buckets.computeIfAbsent(processMoniker, p -> new TokenBucket(quota.get())).tryTake();
+        if (0L == wait) {
+            return Optional.empty();
+        }
+        String info = String.format("Invocation quota of process \"%s\" is used up, try again later", processMoniker);
+        return Optional.of(new Rejection("quota", info, wait));
+    }
+
+    /**
+     * Gives back an invocation taken from the quota of process, if no process was started
+     * after all (e.g. since the business request was re-issued).
+     */
+    /* package private */ void returnQuota(String processMoniker) {
+        TokenBucket bucket = buckets.get(processMoniker);
+        if (null != bucket) {
+            bucket.giveBack();
+        }
+    }
+
+    /**
+     * Waits (briefly) for room to run a process synchronously. If admitted, the process
+     * must be followed by a call to {@link #exit()}.
+     */
+    /* package private */ Optional<Rejection> enter() {
+        if (0 == maxProcesses) {
+            return Optional.empty();
+        }
+        try {
+            if (processes.tryAcquire(waitNanos, TimeUnit.NANOSECONDS)) {
+                return Optional.empty();
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        String info = "Too many processes running right now, try again later";
+        return Optional.of(new Rejection("running", info, TimeUnit.SECONDS.toNanos(1)));
+    }
+
+    /* package private */ void exit() {
+        if (maxProcesses > 0) {
+            processes.release();
+        }
+    }
+
+    /**
+     * Checks that asynchronous processes are not waiting too long in queue to be run.
+     */
+    /* package private */ Optional<Rejection> checkQueueWait(ProcessExecutor executor) {
+        if (0L == maxQueueWaitNanos) {
+            return Optional.empty();
+        }
+        long queueWait = executor.queueWaitNanos();
+        if (queueWait <= maxQueueWaitNanos) {
+            return Optional.empty();
+        }
+        String info = "Asynchronous processes are queued for too long right now, try again later";
+        return Optional.of(new Rejection("queue", info, queueWait));
+    }
+}
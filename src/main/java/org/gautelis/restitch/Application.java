@@ -51,6 +51,32 @@ public class Application {
     private static final String PROCESS_SPECIFICATION_FILE = "RESTITCH_PROCESS_SPECIFICATION_FILE";
     private static final String MANAGEMENT_POLICY_FILE = "RESTITCH_MANAGEMENT_POLICY_FILE";
     private static final String SQL_STATEMENTS_FILE = "RESTITCH_SQL_STATEMENTS_FILE";
+    private static final String HTTP_MAX_CONNECTIONS = "RESTITCH_HTTP_MAX_CONNECTIONS";
+    private static final String HTTP_MAX_CONNECTIONS_PER_ROUTE = "RESTITCH_HTTP_MAX_CONNECTIONS_PER_ROUTE";
+    private static final String HTTP_KEEP_ALIVE_SECONDS = "RESTITCH_HTTP_KEEP_ALIVE_SECONDS";
+    private static final String ASYNC_PROCESS_THREADS = "RESTITCH_ASYNC_PROCESS_THREADS";
+    private static final String ASYNC_PROCESS_QUEUE_SIZE = "RESTITCH_ASYNC_PROCESS_QUEUE_SIZE";
+    private static final String EXECUTION_MODE = "RESTITCH_EXECUTION_MODE";
+    private static final String RESULT_CACHE_SIZE = "RESTITCH_RESULT_CACHE_SIZE";
+    private static final String LOCAL_DUPLICATE_INDEX = "RESTITCH_LOCAL_DUPLICATE_INDEX";
+    private static final String LOCAL_DUPLICATE_INDEX_CAPACITY = "RESTITCH_LOCAL_DUPLICATE_INDEX_CAPACITY";
+    private static final String PROCESS_MONIKER_INDEX_SIZE = "RESTITCH_PROCESS_MONIKER_INDEX_SIZE";
+    private static final String BULK_PARALLELISM = "RESTITCH_BULK_PARALLELISM";
+    private static final String BATCH_CONCURRENCY = "RESTITCH_BATCH_CONCURRENCY";
+    private static final String BATCH_MAX_MEGABYTES = "RESTITCH_BATCH_MAX_MEGABYTES";
+    private static final String CIRCUIT_BREAKER_FAILURES = "RESTITCH_CIRCUIT_BREAKER_FAILURES";
+    private static final String CIRCUIT_BREAKER_OPEN_SECONDS = "RESTITCH_CIRCUIT_BREAKER_OPEN_SECONDS";
+    private static final String BACKEND_LIMIT_INITIAL = "RESTITCH_BACKEND_LIMIT_INITIAL";
+    private static final String BACKEND_LIMIT_MAX = "RESTITCH_BACKEND_LIMIT_MAX";
+    private static final String BACKEND_LIMIT_QUEUE_MILLIS = "RESTITCH_BACKEND_LIMIT_QUEUE_MILLIS";
+    private static final String MAX_RUNNING_PROCESSES = "RESTITCH_MAX_RUNNING_PROCESSES";
+    private static final String ADMISSION_WAIT_MILLIS = "RESTITCH_ADMISSION_WAIT_MILLIS";
+    private static final String MAX_QUEUE_WAIT_MILLIS = "RESTITCH_MAX_QUEUE_WAIT_MILLIS";
+    private static final String RETRY_BUDGET_PERCENT = "RESTITCH_RETRY_BUDGET_PERCENT";
+    private static final String RETRY_BUDGET_MIN_PER_SECOND = "RESTITCH_RETRY_BUDGET_MIN_PER_SECOND";
+    private static final String STEP_CACHE_MEGABYTES = "RESTITCH_STEP_CACHE_MEGABYTES";
+    private static final String WATCH_PROCESS_SPECIFICATION = "RESTITCH_WATCH_PROCESS_SPECIFICATION";
+    private static final String TIMELINE_PROCESSES = "RESTITCH_TIMELINE_PROCESSES";
 
     public interface Configuration {
         @Configurable(property = PROCESS_SPECIFICATION_FILE)
@@ -61,16 +87,157 @@ public class Application {
 
         @Configurable(property = SQL_STATEMENTS_FILE)
         File sqlStatements();
-    }
 
-    public static void main( String... args ) {
+        @Configurable(property = HTTP_MAX_CONNECTIONS)
+        int httpMaxConnections();
 
-        // Setup configuration
+        @Configurable(property = HTTP_MAX_CONNECTIONS_PER_ROUTE)
+        int httpMaxConnectionsPerRoute();
+
+        @Configurable(property = HTTP_KEEP_ALIVE_SECONDS)
+        int httpKeepAliveSeconds();
+
+        @Configurable(property = ASYNC_PROCESS_THREADS)
+        int asyncProcessThreads();
+
+        @Configurable(property = ASYNC_PROCESS_QUEUE_SIZE)
+        int asyncProcessQueueSize();
+
+        @Configurable(property = EXECUTION_MODE)
+        String executionMode();
+
+        @Configurable(property = RESULT_CACHE_SIZE)
+        int resultCacheSize();
+
+        @Configurable(property = LOCAL_DUPLICATE_INDEX)
+        boolean localDuplicateIndex();
+
+        @Configurable(property = LOCAL_DUPLICATE_INDEX_CAPACITY)
+        int localDuplicateIndexCapacity();
+
+        @Configurable(property = PROCESS_MONIKER_INDEX_SIZE)
+        int processMonikerIndexSize();
+
+        @Configurable(property = BULK_PARALLELISM)
+        int bulkParallelism();
+
+        @Configurable(property = BATCH_CONCURRENCY)
+        int batchConcurrency();
+
+        @Configurable(property = BATCH_MAX_MEGABYTES)
+        int batchMaxMegabytes();
+
+        @Configurable(property = CIRCUIT_BREAKER_FAILURES)
+        int circuitBreakerFailures();
+
+        @Configurable(property = CIRCUIT_BREAKER_OPEN_SECONDS)
+        int circuitBreakerOpenSeconds();
+
+        @Configurable(property = BACKEND_LIMIT_INITIAL)
+        int backendLimitInitial();
+
+        @Configurable(property = BACKEND_LIMIT_MAX)
+        int backendLimitMax();
+
+        @Configurable(property = BACKEND_LIMIT_QUEUE_MILLIS)
+        int backendLimitQueueMillis();
+
+        @Configurable(property = MAX_RUNNING_PROCESSES)
+        int maxRunningProcesses();
+
+        @Configurable(property = ADMISSION_WAIT_MILLIS)
+        int admissionWaitMillis();
+
+        @Configurable(property = MAX_QUEUE_WAIT_MILLIS)
+        int maxQueueWaitMillis();
+
+        @Configurable(property = RETRY_BUDGET_PERCENT)
+        int retryBudgetPercent();
+
+        @Configurable(property = RETRY_BUDGET_MIN_PER_SECOND)
+        int retryBudgetMinPerSecond();
+
+        @Configurable(property = STEP_CACHE_MEGABYTES)
+        int stepCacheMegabytes();
+
+        @Configurable(property = WATCH_PROCESS_SPECIFICATION)
+        boolean watchProcessSpecification();
+
+        @Configurable(property = TIMELINE_PROCESSES)
+        int timelineProcesses();
+    }
+
+    /**
+     * Binds configuration, as found among environment variables, falling back on provided
+     * settings and then on defaults.
+     * @param settings (overriding) default settings, keyed by environment variable name
+     */
+    /* package private */ static Configuration getConfiguration(Map<String, String> settings) {
         Collection<ConfigurationTool.ConfigurationResolver> resolvers = new ArrayList<>();
         resolvers.add(new SystemEnvironmentConfigurationResolver());
 
         Map<String, String> defaults = new HashMap<>();
-        Configuration configuration = ConfigurationTool.bind(Configuration.class, defaults, resolvers);
+        defaults.put(HTTP_MAX_CONNECTIONS, "200");
+        defaults.put(HTTP_MAX_CONNECTIONS_PER_ROUTE, "50");
+        defaults.put(HTTP_KEEP_ALIVE_SECONDS, "30");
+        defaults.put(ASYNC_PROCESS_THREADS, "50");
+        defaults.put(ASYNC_PROCESS_QUEUE_SIZE, "1000");
+        defaults.put(EXECUTION_MODE, "platform");
+        defaults.put(RESULT_CACHE_SIZE, "10000");
+        defaults.put(LOCAL_DUPLICATE_INDEX, "true");
+        defaults.put(LOCAL_DUPLICATE_INDEX_CAPACITY, "1000000");
+        defaults.put(PROCESS_MONIKER_INDEX_SIZE, "100000");
+        defaults.put(BULK_PARALLELISM, "4");
+        defaults.put(BATCH_CONCURRENCY, "16");
+        defaults.put(BATCH_MAX_MEGABYTES, "16");
+        defaults.put(CIRCUIT_BREAKER_FAILURES, "5");
+        defaults.put(CIRCUIT_BREAKER_OPEN_SECONDS, "30");
+        defaults.put(BACKEND_LIMIT_INITIAL, "10");
+        defaults.put(BACKEND_LIMIT_MAX, "100");
+        defaults.put(BACKEND_LIMIT_QUEUE_MILLIS, "100");
+        defaults.put(MAX_RUNNING_PROCESSES, "200");
+        defaults.put(ADMISSION_WAIT_MILLIS, "100");
+        defaults.put(MAX_QUEUE_WAIT_MILLIS, "10000");
+        defaults.put(RETRY_BUDGET_PERCENT, "10");
+        defaults.put(RETRY_BUDGET_MIN_PER_SECOND, "10");
+        defaults.put(STEP_CACHE_MEGABYTES, "64");
+        defaults.put(WATCH_PROCESS_SPECIFICATION, "true");
+        defaults.put(TIMELINE_PROCESSES, "1000");
+        defaults.putAll(settings);
+        return ConfigurationTool.bind(Configuration.class, defaults, resolvers);
+    }
+
+    /**
+     * Sets up pooled HTTP clients, used when invoking backing services, threads used to run
+     * processes and activities, and protection of backing services.
+     */
+    /* package private */ static void configureWorkers(Configuration configuration) {
+        BackendClient.configure(
+                configuration.httpMaxConnections(),
+                configuration.httpMaxConnectionsPerRoute(),
+                configuration.httpKeepAliveSeconds()
+        );
+        AsyncBackendClient.configure(
+                configuration.httpMaxConnections(),
+                configuration.httpMaxConnectionsPerRoute(),
+                configuration.httpKeepAliveSeconds()
+        );
+        Workers.configure(configuration.executionMode());
+        CircuitBreaker.configure(configuration.circuitBreakerFailures(), configuration.circuitBreakerOpenSeconds());
+        ConcurrencyLimiter.configure(
+                configuration.backendLimitInitial(),
+                configuration.backendLimitMax(),
+                configuration.backendLimitQueueMillis()
+        );
+        RetryPolicy.configure(configuration.retryBudgetPercent(), configuration.retryBudgetMinPerSecond());
+        StepResultCache.configure(configuration.stepCacheMegabytes());
+        ProcessTimelines.configure(configuration.timelineProcesses());
+    }
+
+    public static void main( String... args ) {
+
+        // Setup configuration
+        Configuration configuration = getConfiguration(Collections.emptyMap());
 
         // Load process specification
         File specFile = configuration.processSpecification();
@@ -132,20 +299,37 @@ public class Application {
             System.exit(CONFIGURATION_FAILURE_STATUS);
         }
 
+        // Setup pooled HTTP clients, threads used to run processes and activities, and protection of backing services
+        try {
+            configureWorkers(configuration);
+        }
+        catch (IllegalArgumentException iae) {
+            System.err.println(iae.getMessage());
+            System.exit(CONFIGURATION_FAILURE_STATUS);
+        }
+        getRuntime().addShutdownHook(new Thread(() -> {
+            BackendClient.shutdown();
+            AsyncBackendClient.shutdown();
+        }));
+
         //
         DataSource dataSource = getDataSource();
         MuProcessManager manager = MuProcessManagerFactory.getManager(dataSource, sqlStatements, policy);
         getRuntime().addShutdownHook(new Thread(manager::stop));
         manager.start();
 
+        // Process monikers are not known by the process manager
+        ProcessMonikers monikers = new ProcessMonikers(configuration.processMonikerIndexSize());
+
         try {
             MetricsInterceptor metricsInterceptor = new MetricsInterceptor();
             new MicroservicesRunner()
                     .addGlobalRequestInterceptor(metricsInterceptor)
                     .addGlobalResponseInterceptor(metricsInterceptor)
-                    .deploy(new ProcessService(manager, configuration))
-                    .deploy(new StatusProcessService(manager))
-                    .deploy(new AbandonedProcessService(manager))
+                    .deploy(new ProcessService(manager, policy, monikers, configuration))
+                    .deploy(new StatusProcessService(manager, monikers))
+                    .deploy(new AbandonedProcessService(manager, configuration.bulkParallelism()))
+                    .deploy(new MetricsService())
                     // Non-important stuff
                     .deploy(new StubbedInvocationService())
                     .deploy(new StubbedCompensationService())
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2018 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.gautelis.restitch;
+
+import org.apache.hc.client5.http.async.methods.SimpleHttpRequest;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.async.methods.SimpleRequestBuilder;
+import org.apache.hc.client5.http.config.TlsConfig;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.H2AsyncClientBuilder;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManager;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManagerBuilder;
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.util.TimeValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+/**
+ * Non-blocking HTTP client(s) used when invoking and compensating activities that are
+ * configured with the 'async' or 'http2' transport.
+ * <p>
+ * Calls complete futures instead of holding a thread while waiting for the backend, and
+ * with HTTP/2 many concurrent calls to the same backend are multiplexed over few connections.
+ * This is what makes the transport suitable for backends with high fan-in, e.g. activities
+ * in parallel stages.
+ */
+public final class AsyncBackendClient {
+    private static final Logger log = LoggerFactory.getLogger(AsyncBackendClient.class);
+
+    private static final int DEFAULT_MAX_CONNECTIONS = 200;
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 50;
+
+    private static int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private static int maxConnectionsPerRoute = DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+    private static int keepAliveSeconds = 30;
+
+    private static volatile CloseableHttpAsyncClient asyncClient = null;
+    private static volatile CloseableHttpAsyncClient http2Client = null;
+
+    /**
+     * A reply from a backend, with the body decoded if it is JSON.
+     */
+    /* package private */ static class Reply {
+        /* package private */ final int status;
+        /* package private */ final String reason;
+        /* package private */ final String json;
+        /* package private */ final long bytes; // received
+
+        /* package private */ Reply(int status, String reason, String json, long bytes) {
+            this.status = status;
+            this.reason = reason;
+            this.json = json;
+            this.bytes = bytes;
+        }
+    }
+
+    private AsyncBackendClient() {}
+
+    /**
+     * Sets connection limits for the 'async' transport. Should be called before any activity is invoked.
+     */
+    /* package private */ static synchronized void configure(int maxConnections, int maxConnectionsPerRoute, int keepAliveSeconds) {
+        AsyncBackendClient.maxConnections = maxConnections;
+        AsyncBackendClient.maxConnectionsPerRoute = maxConnectionsPerRoute;
+        AsyncBackendClient.keepAliveSeconds = keepAliveSeconds;
+    }
+
+    /**
+     * Posts JSON payload to a backend.
+     * @return future reply, completed exceptionally if the backend could not be reached
+     */
+    /* package private */ static CompletableFuture<Reply> post(Transport transport, String correlationId, URI uri, Payload payload) {
+        SimpleHttpRequest request = SimpleRequestBuilder.post(uri)
+                .setHeader("Correlation-ID", correlationId)
+                .setBody(payload.bytes(), ContentType.APPLICATION_JSON)
+                .build();
+
+        final CompletableFuture<Reply> reply = new CompletableFuture<>();
+        try {
+            execute(transport, request, reply);
+        } catch (RuntimeException re) {
+            reply.completeExceptionally(re);
+        }
+        return reply;
+    }
+
+    private static void execute(Transport transport, SimpleHttpRequest request, final CompletableFuture<Reply> reply) {
+        Future<SimpleHttpResponse> call = client(transport).execute(request, new FutureCallback<SimpleHttpResponse>() {
+            @Override
+            public void completed(SimpleHttpResponse response) {
+                String json = null;
+                byte[] body = response.getBodyBytes();
+                ContentType contentType = response.getContentType();
+                if (null != body && null != contentType && ContentType.APPLICATION_JSON.getMimeType().equalsIgnoreCase(contentType.getMimeType())) {
+                    // JSON is UTF-8 unless stated otherwise, as on the blocking transport
+                    Charset charset = null != contentType.getCharset() ? contentType.getCharset() : StandardCharsets.UTF_8;
+                    json = new String(body, charset);
+                }
+                reply.complete(new Reply(response.getCode(), response.getReasonPhrase(), json, null != body ? body.length : 0L));
+            }
+
+            @Override
+            public void failed(Exception e) {
+                reply.completeExceptionally(e);
+            }
+
+            @Override
+            public void cancelled() {
+                reply.cancel(false);
+            }
+        });
+
+        // Cancelling the reply (e.g. when a hedged call wins) cancels the call
+        reply.whenComplete((r, t) -> {
+            if (reply.isCancelled()) {
+                call.cancel(true);
+            }
+        });
+    }
+
+    private static CloseableHttpAsyncClient client(Transport transport) {
+        CloseableHttpAsyncClient client = Transport.HTTP2 == transport ? http2Client : asyncClient;
+        if (null == client) {
+            synchronized (AsyncBackendClient.class) {
+                if (Transport.HTTP2 == transport) {
+                    if (null == http2Client) {
+                        http2Client = H2AsyncClientBuilder.create()
+                                .evictIdleConnections(TimeValue.ofSeconds(keepAliveSeconds))
+                                .disableCookieManagement()
+                                .build();
+                        http2Client.start();
+                        log.info("Started non-blocking HTTP/2 client");
+                    }
+                    client = http2Client;
+
+                } else {
+                    if (null == asyncClient) {
+                        PoolingAsyncClientConnectionManager connectionManager = PoolingAsyncClientConnectionManagerBuilder.create()
+                                .setMaxConnTotal(maxConnections)
+                                .setMaxConnPerRoute(maxConnectionsPerRoute)
+                                .setDefaultTlsConfig(TlsConfig.custom().setVersionPolicy(HttpVersionPolicy.NEGOTIATE).build())
+                                .build();
+                        asyncClient = HttpAsyncClients.custom()
+                                .setConnectionManager(connectionManager)
+                                .evictIdleConnections(TimeValue.ofSeconds(keepAliveSeconds))
+                                .disableCookieManagement()
+                                .build();
+                        asyncClient.start();
+
+                        Metrics.gauge(Metrics.series("restitch_http_pool_leased", "pool", "async"), () -> connectionManager.getTotalStats().getLeased());
+                        Metrics.gauge(Metrics.series("restitch_http_pool_available", "pool", "async"), () -> connectionManager.getTotalStats().getAvailable());
+                        Metrics.gauge(Metrics.series("restitch_http_pool_pending", "pool", "async"), () -> connectionManager.getTotalStats().getPending());
+                        Metrics.gauge(Metrics.series("restitch_http_pool_max", "pool", "async"), () -> connectionManager.getTotalStats().getMax());
+                        log.info("Started non-blocking HTTP client: max {} connections, max {} per route", maxConnections, maxConnectionsPerRoute);
+                    }
+                    client = asyncClient;
+                }
+            }
+        }
+        return client;
+    }
+
+    /* package private */ static synchronized void shutdown() {
+        if (null != asyncClient) {
+            asyncClient.close(CloseMode.GRACEFUL);
+            asyncClient = null;
+        }
+        if (null != http2Client) {
+            http2Client.close(CloseMode.GRACEFUL);
+            http2Client = null;
+        }
+    }
+}
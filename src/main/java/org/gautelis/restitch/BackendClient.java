@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2018 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.gautelis.restitch;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.util.Args;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long lived, pooled HTTP client(s) used when invoking and compensating activities.
+ * <p>
+ * Connections are kept alive between calls, so that consecutive activities (in this
+ * and other processes) that target the same backend reuse established connections instead
+ * of paying for a new TCP (and TLS) handshake each time.
+ * <p>
+ * There is one shared pool. Process steps may adjust the per-route limit of the shared pool
+ * (by means of 'maxConnectionsPerRoute') or ask for a dedicated pool for their backend(s)
+ * (by means of 'maxConnections').
+ * <p>
+ * Activities are instantiated by the process manager when recovering processes, without any
+ * knowledge of the process specification, which is why the clients are looked up by
+ * backend URI.
+ */
+public final class BackendClient {
+    private static final Logger log = LoggerFactory.getLogger(BackendClient.class);
+
+    private static final String SHARED_POOL = "shared";
+
+    private static final int DEFAULT_MAX_CONNECTIONS = 200;
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 50;
+    private static final int DEFAULT_KEEP_ALIVE_SECONDS = 30;
+
+    private static volatile Pool shared = null;
+    private static final Map<HttpHost, Pool> dedicated = new ConcurrentHashMap<>();
+
+    private static int keepAliveSeconds = DEFAULT_KEEP_ALIVE_SECONDS;
+
+    private static class Pool {
+        private final String name;
+        private final PoolingHttpClientConnectionManager connectionManager;
+        private final CloseableHttpClient client;
+
+        private Pool(String name, int maxConnections, int maxConnectionsPerRoute) {
+            this.name = name;
+
+            connectionManager = new PoolingHttpClientConnectionManager(keepAliveSeconds, TimeUnit.SECONDS);
+            connectionManager.setMaxTotal(maxConnections);
+            connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+            connectionManager.setValidateAfterInactivity(2000);
+
+            final long keepAliveMillis = TimeUnit.SECONDS.toMillis(keepAliveSeconds);
+            client = HttpClients.custom()
+                    .setConnectionManager(connectionManager)
+                    .setKeepAliveStrategy((response, context) -> {
+                        // Honour 'Keep-Alive: timeout=...' from backend, but don't hold on forever
+                        long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                        return duration > 0 ? Math.min(duration, keepAliveMillis) : keepAliveMillis;
+                    })
+                    .evictExpiredConnections()
+                    .evictIdleConnections(keepAliveSeconds, TimeUnit.SECONDS)
+                    .build();
+
+            Metrics.gauge(Metrics.series("restitch_http_pool_leased", "pool", name), () -> stats().getLeased());
+            Metrics.gauge(Metrics.series("restitch_http_pool_available", "pool", name), () -> stats().getAvailable());
+            Metrics.gauge(Metrics.series("restitch_http_pool_pending", "pool", name), () -> stats().getPending());
+            Metrics.gauge(Metrics.series("restitch_http_pool_max", "pool", name), () -> stats().getMax());
+        }
+
+        private PoolStats stats() {
+            return connectionManager.getTotalStats();
+        }
+
+        private void close() {
+            try {
+                client.close();
+            } catch (IOException ioe) {
+                log.info("Failed to close HTTP connection pool \"{}\": {}", name, ioe.getMessage());
+            }
+        }
+    }
+
+    private BackendClient() {}
+
+    /**
+     * Sets up the shared connection pool. Should be called once, before any activity is invoked.
+     */
+    /* package private */ static synchronized void configure(int maxConnections, int maxConnectionsPerRoute, int keepAliveSeconds) {
+        Args.positive(maxConnections, "Max connections");
+        Args.positive(maxConnectionsPerRoute, "Max connections per route");
+        Args.positive(keepAliveSeconds, "Keep-alive seconds");
+
+        BackendClient.keepAliveSeconds = keepAliveSeconds;
+        if (null != shared) {
+            shared.close();
+        }
+        shared = new Pool(SHARED_POOL, maxConnections, maxConnectionsPerRoute);
+        log.info("Shared HTTP connection pool: max {} connections, max {} per route, keep-alive {}s",
+                maxConnections, maxConnectionsPerRoute, keepAliveSeconds);
+    }
+
+    /**
+     * Applies per-step connection limits, as stated in the process specification.
+     */
+    /* package private */ static synchronized void configure(ProcessSpecification specification) {
+        specification.forEachSpecification(BackendClient::configure);
+    }
+
+    private static void configure(ProcessSpecification.Specification specification) {
+        Optional<Integer> maxConnections = specification.getMaxConnections();
+        Optional<Integer> maxConnectionsPerRoute = specification.getMaxConnectionsPerRoute();
+        if (!maxConnections.isPresent() && !maxConnectionsPerRoute.isPresent()) {
+            return;
+        }
+
+        for (URI uri : specification.getURIs()) {
+            HttpHost host = hostOf(uri);
+
+            if (maxConnections.isPresent()) {
+                // Dedicated pool for this backend
+                int perRoute = maxConnectionsPerRoute.orElse(maxConnections.get());
+                dedicated.compute(host, (h, existing) -> {
+                    if (null != existing) {
+                        int max = existing.connectionManager.getMaxTotal();
+                        if (max >= maxConnections.get()) {
+                            return existing;
+                        }
+                        log.info("Extending dedicated HTTP connection pool for {} to max {} connections", h, maxConnections.get());
+                        existing.connectionManager.setMaxTotal(maxConnections.get());
+                        existing.connectionManager.setDefaultMaxPerRoute(Math.max(perRoute, existing.connectionManager.getDefaultMaxPerRoute()));
+                        return existing;
+                    }
+                    log.info("Dedicated HTTP connection pool for {}: max {} connections, max {} per route", h, maxConnections.get(), perRoute);
+                    return new Pool(h.toHostString(), maxConnections.get(), perRoute);
+                });
+            } else {
+                // Adjust per-route limit in shared pool
+                HttpRoute route = new HttpRoute(host, null, "https".equalsIgnoreCase(host.getSchemeName()));
+                PoolingHttpClientConnectionManager connectionManager = shared().connectionManager;
+                int max = Math.max(maxConnectionsPerRoute.get(), connectionManager.getMaxPerRoute(route));
+                connectionManager.setMaxPerRoute(route, max);
+                log.info("Shared HTTP connection pool: max {} connections for {}", max, host);
+            }
+        }
+    }
+
+    /**
+     * Returns the (long lived) client to use when communicating with specified backend.
+     * The returned client must not be closed.
+     */
+    /* package private */ static CloseableHttpClient clientFor(URI uri) {
+        if (!dedicated.isEmpty()) {
+            Pool pool = dedicated.get(hostOf(uri));
+            if (null != pool) {
+                return pool.client;
+            }
+        }
+        Pool pool = shared;
+        if (null == pool) {
+            pool = shared();
+        }
+        return pool.client;
+    }
+
+    /* package private */ static synchronized void shutdown() {
+        dedicated.values().forEach(Pool::close);
+        dedicated.clear();
+        if (null != shared) {
+            shared.close();
+            shared = null;
+        }
+    }
+
+    private static synchronized Pool shared() {
+        if (null == shared) {
+            // Not explicitly configured, i.e. running outside of Application
+            shared = new Pool(SHARED_POOL, DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS_PER_ROUTE);
+        }
+        return shared;
+    }
+
+    private static HttpHost hostOf(URI uri) {
+        String scheme = null != uri.getScheme() ? uri.getScheme().toLowerCase() : "http";
+        int port = uri.getPort();
+        if (port < 0) {
+            // Match the routes as resolved by the client
+            port = "https".equals(scheme) ? 443 : 80;
+        }
+        return new HttpHost(uri.getHost(), port, scheme);
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2018 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.gautelis.restitch;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How the calls made by a step are made, as stated for the step in the process specification,
+ * i.e. whether failed calls are re-tried, whether invocations are hedged and whether their
+ * results are cached.
+ * <p>
+ * Policies are compiled into the execution plan of a process, so that they apply to the step
+ * stating them -- and not to every step that happens to call the same backend. Since a running
+ * process holds on to its plan, it keeps these policies even if the process specification is
+ * reloaded while it runs.
+ */
+/* package private */ final class CallPolicy {
+    /**
+     * Used for calls not made as part of an execution plan, e.g. when compensating in the background.
+     */
+    /* package private */ static final CallPolicy NONE = new CallPolicy(null, null, 0L);
+
+    private final RetryPolicy retry; // null if the current policy of the backend applies
+    /* package private */ final Hedging hedging; // null if calls are not hedged
+    /* package private */ final long cacheTtlNanos; // 0 if results are not cached
+
+    private CallPolicy(RetryPolicy retry, Hedging hedging, long cacheTtlNanos) {
+        this.retry = retry;
+        this.hedging = hedging;
+        this.cacheTtlNanos = cacheTtlNanos;
+    }
+
+    /**
+     * @return policy of invocations made by step
+     */
+    /* package private */ static CallPolicy forward(ProcessSpecification.Specification specification) {
+        RetryPolicy retry = RetryPolicy.of(specification.getInvocationURI(), specification.getRetry());
+        Hedging hedging = Hedging.of(specification);
+        long cacheTtlNanos = specification.isCacheable() ? TimeUnit.SECONDS.toNanos(specification.getCacheTtlSeconds()) : 0L;
+        return new CallPolicy(retry, hedging, cacheTtlNanos);
+    }
+
+    /**
+     * @return policy of compensations made by step
+     */
+    /* package private */ static CallPolicy backward(ProcessSpecification.Specification specification) {
+        if (!specification.getCompensationURI().isPresent()) {
+            return NONE;
+        }
+        RetryPolicy retry = RetryPolicy.of(specification.getCompensationURI().get(), specification.getRetry());
+
+        // Compensations are never hedged, nor cached
+        return new CallPolicy(retry, null, 0L);
+    }
+
+    /**
+     * @return retry policy of calls made to uri
+     */
+    /* package private */ RetryPolicy retry(URI uri) {
+        return null != retry ? retry : RetryPolicy.of(uri);
+    }
+}
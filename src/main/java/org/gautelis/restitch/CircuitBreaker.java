@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2018 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.gautelis.restitch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Circuit breaker, one per backend URI, that stops calling a backend that keeps failing.
+ * <p>
+ * After a number of consecutive failures (connection failures or 5xx replies), the circuit
+ * is opened and calls fail immediately. After a while, one call is let through as a probe
+ * (the circuit is half-open): if it succeeds the circuit is closed again, otherwise it is
+ * re-opened.
+ * <p>
+ * Processes having a step with an open circuit are not started at all, so that we do not
+ * first run (and then compensate) steps that precede the failing step.
+ */
+/* package private */ class CircuitBreaker {
+    private static final Logger log = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    /* package private */ enum State {
+        CLOSED,
+        HALF_OPEN,
+        OPEN
+    }
+
+    /**
+     * Thrown when a call is refused since the circuit is open.
+     */
+    /* package private */ static class OpenException extends IOException {
+        /* package private */ OpenException(URI uri) {
+            super("Circuit open for " + uri);
+        }
+    }
+
+    /*
+     * State, and when circuit was (last) opened, changed together
+     */
+    private static final class Circuit {
+        private static final Circuit CLOSED = new Circuit(State.CLOSED, 0L);
+
+        private final State state;
+        private final long openedAt;
+
+        private Circuit(State state, long openedAt) {
+            this.state = state;
+            this.openedAt = openedAt;
+        }
+    }
+
+    private static volatile int defaultFailures = 5;
+    private static volatile int defaultOpenSeconds = 30;
+
+    private static final Map<URI, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    private final URI uri;
+    private final int failureThreshold;
+    private final long openNanos;
+
+    private final AtomicReference<Circuit> circuit = new AtomicReference<>(Circuit.CLOSED);
+    private final AtomicInteger failures = new AtomicInteger();
+
+    private final LongAdder rejected;
+
+    private CircuitBreaker(URI uri, int failureThreshold, int openSeconds) {
+        this.uri = uri;
+        this.failureThreshold = failureThreshold;
+        this.openNanos = TimeUnit.SECONDS.toNanos(openSeconds);
+
+        this.rejected = Metrics.counter(Metrics.series("restitch_circuit_rejected_total", "uri", uri.toString()));
+        Metrics.gauge(Metrics.series("restitch_circuit_state", "uri", uri.toString()), () -> circuit.get().state.ordinal());
+    }
+
+    /**
+     * Sets thresholds used for backends not explicitly configured in the process specification.
+     * @param failures number of consecutive failures that opens a circuit, 0 meaning never
+     * @param openSeconds time before a probe is let through an open circuit
+     */
+    /* package private */ static void configure(int failures, int openSeconds) {
+        if (failures < 0 || openSeconds < 1) {
+            String info = "Illegal circuit breaker configuration: ";
+            info += failures + " failures, " + openSeconds + " seconds open";
+            throw new IllegalArgumentException(info);
+        }
+        defaultFailures = failures;
+        defaultOpenSeconds = openSeconds;
+    }
+
+    /**
+     * Applies per-step thresholds, as stated in the process specification. If the same backend
+     * is configured differently in different steps, the most cautious setting is used. When
+     * the specification is reloaded, breakers keep their state unless thresholds changed.
+     */
+    /* package private */ static synchronized void configure(ProcessSpecification specification) {
+        // Thresholds (failures and open seconds) per backend
+        Map<URI, int[]> thresholds = new HashMap<>();
+        specification.forEachSpecification(s -> {
+            Optional<Integer> failures = s.getCircuitBreakerFailures();
+            Optional<Integer> openSeconds = s.getCircuitBreakerOpenSeconds();
+            if (!failures.isPresent() && !openSeconds.isPresent()) {
+                return;
+            }
+            int[] threshold = { failures.orElse(defaultFailures), openSeconds.orElse(defaultOpenSeconds) };
+            for (URI uri : s.getURIs()) {
+                thresholds.merge(uri, threshold, (t1, t2) -> new int[] { Math.min(t1[0], t2[0]), Math.max(t1[1], t2[1]) });
+            }
+        });
+
+        // Backends no longer explicitly configured get default thresholds
+        for (URI uri : breakers.keySet()) {
+            thresholds.putIfAbsent(uri, new int[] { defaultFailures, defaultOpenSeconds });
+        }
+
+        thresholds.forEach((uri, threshold) -> breakers.compute(uri, (u, existing) -> {
+            if (null != existing && existing.failureThreshold == threshold[0]
+                    && existing.openNanos == TimeUnit.SECONDS.toNanos(threshold[1])) {
+                return existing;
+            }
+            log.info("Circuit breaker for {}: open after {} failures, for {}s", u, threshold[0], threshold[1]);
+            return new CircuitBreaker(u, threshold[0], threshold[1]);
+        }));
+    }
+
+    /* package private */ static CircuitBreaker of(URI uri) {
+        return breakers.computeIfAbsent(uri, u -> new CircuitBreaker(u, defaultFailures, defaultOpenSeconds));
+    }
+
+    /**
+     * Finds first backend, among backends invoked by a process (including those in parallel
+     * stages), having an open circuit.
+     * @return breaker of open circuit, if any
+     */
+    /* package private */ static Optional<CircuitBreaker> anyOpen(List<URI> invocationURIs) {
+        for (int i = 0; i < invocationURIs.size(); i++) {
+            CircuitBreaker breaker = breakers.get(invocationURIs.get(i));
+            if (null != breaker && breaker.isOpen()) {
+                return Optional.of(breaker);
+            }
+        }
+        return Optional.empty();
+    }
+
+    /* package private */ URI getURI() {
+        return uri;
+    }
+
+    /**
+     * @return true if circuit is open and not yet ready for a probe
+     */
+    /* package private */ boolean isOpen() {
+        Circuit _circuit = circuit.get();
+        return State.OPEN == _circuit.state && System.nanoTime() - _circuit.openedAt < openNanos;
+    }
+
+    /**
+     * @return seconds until a probe will be let through, if circuit is open
+     */
+    /* package private */ long secondsUntilProbe() {
+        long remaining = openNanos - (System.nanoTime() - circuit.get().openedAt);
+        return Math.max(1L, TimeUnit.NANOSECONDS.toSeconds(remaining + TimeUnit.SECONDS.toNanos(1) - 1));
+    }
+
+    /**
+     * Asks for permission to call backend. Every permitted call must be followed by
+     * either {@link #onSuccess()}, {@link #onFailure()} or {@link #onCancel()}.
+     * @throws OpenException if circuit is open
+     */
+    /* package private */ void acquire() throws OpenException {
+        if (0 == failureThreshold) {
+            return;
+        }
+        Circuit _circuit = circuit.get();
+        switch (_circuit.state) {
+            case CLOSED:
+                return;
+
+            case OPEN:
+                if (System.nanoTime() - _circuit.openedAt >= openNanos
+                        && circuit.compareAndSet(_circuit, new Circuit(State.HALF_OPEN, _circuit.openedAt))) {
+                    log.info("Probing backend {}", uri);
+                    return;
+                }
+                // fall through
+
+            case HALF_OPEN:
+            default:
+                // A probe is already in flight
+                rejected.increment();
+                throw new OpenException(uri);
+        }
+    }
+
+    /* package private */ void onSuccess() {
+        failures.set(0);
+        if (State.CLOSED != circuit.get().state && State.CLOSED != circuit.getAndSet(Circuit.CLOSED).state) {
+            log.info("Closing circuit for backend {}", uri);
+        }
+    }
+
+    /* package private */ void onFailure() {
+        if (0 == failureThreshold) {
+            return;
+        }
+        Circuit _circuit = circuit.get();
+        if (State.HALF_OPEN == _circuit.state && circuit.compareAndSet(_circuit, new Circuit(State.OPEN, System.nanoTime()))) {
+            // Probe failed
+            log.info("Probe failed, keeping circuit open for backend {}", uri);
+            return;
+        }
+        if (failures.incrementAndGet() >= failureThreshold && State.CLOSED == _circuit.state
+                && circuit.compareAndSet(_circuit, new Circuit(State.OPEN, System.nanoTime()))) {
+            log.warn("Opening circuit for backend {} after {} consecutive failures", uri, failures.get());
+        }
+    }
+
+    /**
+     * Records that a permitted call was abandoned, without outcome. If the call was a probe,
+     * another probe is let through.
+     */
+    /* package private */ void onCancel() {
+        Circuit _circuit = circuit.get();
+        if (State.HALF_OPEN == _circuit.state) {
+            circuit.compareAndSet(_circuit, new Circuit(State.OPEN, _circuit.openedAt));
+        }
+    }
+
+    /**
+     * Records outcome of a call, where failure to connect or a 5xx status counts as failure.
+     */
+    /* package private */ void onStatus(int status) {
+        if (status >= 500) {
+            onFailure();
+        } else {
+            onSuccess();
+        }
+    }
+}
@@ -21,7 +21,6 @@ import org.gautelis.muprocessmanager.MuActivity;
 import org.gautelis.muprocessmanager.MuActivityParameters;
 import org.gautelis.muprocessmanager.MuBackwardActivityContext;
 import org.gautelis.muprocessmanager.MuOrchestrationParameters;
-import org.gautelis.muprocessmanager.payload.MuForeignActivityParameters;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,6 +32,8 @@ import java.util.Optional;
 public class CompensatedActivity extends UncompensatedActivity implements MuActivity {
     private static final Logger log = LoggerFactory.getLogger(ProcessService.class);
 
+    private CallPolicy backwardPolicy = CallPolicy.NONE;
+
     /*
      * Used by the compensation facilities, where correlation Id et al is not needed
      */
@@ -42,6 +43,18 @@ public class CompensatedActivity extends UncompensatedActivity implements MuActi
         super(correlationId, invocationURI);
     }
 
+    public CompensatedActivity(String correlationId, URI invocationURI, Transport transport, Payload payload) {
+        super(correlationId, invocationURI, transport, payload);
+    }
+
+    /* package private */ CompensatedActivity(
+            String correlationId, URI invocationURI, Transport transport, Payload payload, ProcessMetrics.Step metrics,
+            CallPolicy forward, CallPolicy backward
+    ) {
+        super(correlationId, invocationURI, transport, payload, metrics, forward);
+        this.backwardPolicy = backward;
+    }
+
     public boolean backward(MuBackwardActivityContext context) {
         MuActivityParameters activityParameters = context.getActivityParameters();
         Optional<MuOrchestrationParameters> orchestrationParameters = context.getOrchestrationParameters();
@@ -59,6 +72,11 @@ public class CompensatedActivity extends UncompensatedActivity implements MuActi
             return false;
         }
 
+        final long start = System.nanoTime();
+        ProcessMetrics.Step _metrics = null;
+        ProcessTimelines.Span span = null;
+        URI uri = null;
+        final Object event = FlightRecording.beginStep();
         try {
             /*---------------------------------------------------------------------------------
              * This is enforced elsewhere!
@@ -67,9 +85,20 @@ public class CompensatedActivity extends UncompensatedActivity implements MuActi
              *    throw new Exception("Configuration error: management policy \"assume-native-process-data-flow\" must be false!");
              * }
              *--------------------------------------------------------------------------------*/
-            MuForeignActivityParameters params = (MuForeignActivityParameters) context.getActivityParameters();
+            // Absent when compensating over the blocking transport
+            Transport transport = Transport.of(orchestrationParameters.get().get("transport"));
+
+            uri = new URI(compensationURI);
+            _metrics = null != metrics ? metrics : ProcessMetrics.Step.unknown(uri);
+            span = ProcessTimelines.span(correlationId, metrics, "backward", uri);
 
-            return post(correlationId, new URI(compensationURI), params.toJson());
+            boolean success = post(transport, correlationId, uri, payload(context.getActivityParameters()), null, backwardPolicy, span);
+            _metrics.backward(start, ProcessMetrics.Outcome.of(success));
+            if (null != span) {
+                span.end(ProcessMetrics.Outcome.of(success));
+            }
+            FlightRecording.endStep(event, correlationId, metrics, "backward", uri, ProcessMetrics.Outcome.of(success));
+            return success;
 
         } catch (URISyntaxException use) {
             String info = "The value provided as compensation instance data (\"";
@@ -77,9 +106,21 @@ public class CompensatedActivity extends UncompensatedActivity implements MuActi
             info += "\") does not qualify as a URI: ";
             info += use.getMessage();
             log.info(info);
+            if (null != metrics) {
+                metrics.backward(start, ProcessMetrics.Outcome.ERROR);
+            }
+            // No span was begun, since there is no URI to call
+            FlightRecording.endStep(event, correlationId, metrics, "backward", null, ProcessMetrics.Outcome.ERROR);
             return false;
 
         } catch (Throwable t) {
+            if (null != _metrics) {
+                _metrics.backward(start, ProcessMetrics.Outcome.ERROR);
+            }
+            if (null != span) {
+                span.end(ProcessMetrics.Outcome.ERROR);
+            }
+            FlightRecording.endStep(event, correlationId, metrics, "backward", uri, ProcessMetrics.Outcome.ERROR);
             String info = "Failed to invoke remote service: ";
             info += t.getMessage();
             log.info(info);
@@ -87,7 +128,7 @@ public class CompensatedActivity extends UncompensatedActivity implements MuActi
         }
     }
 
-    protected static boolean post(String correlationId, URI uri, String json) throws IOException {
-        return post(correlationId, uri, json, null);
+    protected static boolean post(String correlationId, URI uri, Payload payload) throws IOException {
+        return post(correlationId, uri, payload, null);
     }
 }
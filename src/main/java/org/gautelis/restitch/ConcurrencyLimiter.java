@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2018 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.gautelis.restitch;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Adaptive limit on the number of concurrent calls to a backend (URI), so that a slow
+ * backend does not tie up threads (and connections) needed by processes not using it.
+ * <p>
+ * The limit is adjusted AIMD style, driven by observed latency: as long as the backend
+ * answers about as fast as when unloaded, the limit is increased by one per round trip.
+ * When latency rises well above the unloaded latency, or calls fail, the limit is cut
+ * by a fraction (at most once per round trip). Latency is only considered while the limit
+ * is fully used.
+ * <p>
+ * Calls beyond the limit wait briefly for a slot, and are then refused. Calls made over
+ * non-blocking transports do not block while waiting, but are handed a slot when one is
+ * given back.
+ */
+/* package private */ class ConcurrencyLimiter {
+
+    /**
+     * Thrown when a call is refused since the backend is saturated.
+     */
+    /* package private */ static class LimitExceededException extends IOException {
+        /* package private */ LimitExceededException(URI uri, int limit) {
+            super("Concurrency limit (" + limit + ") reached for " + uri);
+        }
+    }
+
+    private static final double BACKOFF_RATIO = 0.9;
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final double SMOOTHING = 0.1;
+    private static final long BASELINE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private static volatile int initialLimit = 10;
+    private static volatile int maxLimit = 100;
+    private static volatile long queueNanos = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final Map<URI, ConcurrencyLimiter> limiters = new ConcurrentHashMap<>();
+    private static final ConcurrencyLimiter UNLIMITED = new ConcurrencyLimiter();
+
+    private final URI uri;
+    private final boolean unlimited;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+
+    // Guarded by lock
+    private double limit;
+    private int inFlight = 0;
+    private int queued = 0;
+    private final Deque<CompletableFuture<Long>> waiters = new ArrayDeque<>(); // non-blocking calls waiting for a slot
+    private double previousMinNanos = Double.MAX_VALUE;
+    private double currentMinNanos = Double.MAX_VALUE;
+    private long windowStart = System.nanoTime();
+    private double smoothedNanos = 0.0;
+    private long lastDecrease = 0L;
+
+    private final LongAdder refused;
+
+    private ConcurrencyLimiter() {
+        this.uri = null;
+        this.unlimited = true;
+        this.refused = null;
+    }
+
+    private ConcurrencyLimiter(URI uri) {
+        this.uri = uri;
+        this.unlimited = false;
+        this.limit = Math.min(initialLimit, maxLimit);
+
+        Metrics.gauge(Metrics.series("restitch_backend_concurrency_limit", "uri", uri.toString()), this::getLimit);
+        Metrics.gauge(Metrics.series("restitch_backend_concurrency_inflight", "uri", uri.toString()), this::getInFlight);
+        Metrics.gauge(Metrics.series("restitch_backend_concurrency_queued", "uri", uri.toString()), this::getQueued);
+        this.refused = Metrics.counter(Metrics.series("restitch_backend_concurrency_refused_total", "uri", uri.toString()));
+    }
+
+    /**
+     * @param initial limit before any latency has been observed
+     * @param max upper bound of limit, 0 meaning that calls are not limited
+     * @param queueMillis max time a call waits for a slot
+     */
+    /* package private */ static void configure(int initial, int max, int queueMillis) {
+        if (initial < 1 || max < 0 || queueMillis < 0) {
+            String info = "Illegal backend concurrency limit configuration: ";
+            info += "initial " + initial + ", max " + max + ", queue " + queueMillis + "ms";
+            throw new IllegalArgumentException(info);
+        }
+        initialLimit = initial;
+        maxLimit = max;
+        queueNanos = TimeUnit.MILLISECONDS.toNanos(queueMillis);
+    }
+
+    /* package private */ static ConcurrencyLimiter of(URI uri) {
+        if (0 == maxLimit) {
+            return UNLIMITED;
+        }
+        return limiters.computeIfAbsent(uri, ConcurrencyLimiter::new);
+    }
+
+    /**
+     * Waits (briefly) for a slot. Every acquired slot must be given back, through either
+     * {@link #release(long, boolean)} or {@link #cancel()}.
+     * @return time at which slot was acquired (as of System.nanoTime)
+     * @throws LimitExceededException if no slot became available in time
+     */
+    /* package private */ long acquire() throws IOException {
+        if (unlimited) {
+            return System.nanoTime();
+        }
+        lock.lock();
+        try {
+            if (inFlight >= (int) limit) {
+                long remaining = queueNanos;
+                queued++;
+                try {
+                    while (inFlight >= (int) limit) {
+                        if (remaining <= 0L) {
+                            refused.increment();
+                            throw new LimitExceededException(uri, (int) limit);
+                        }
+                        remaining = available.awaitNanos(remaining);
+                    }
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting to call " + uri);
+                } finally {
+                    queued--;
+                }
+            }
+            inFlight++;
+            return System.nanoTime();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Asks for a slot without blocking. If none is available, the slot is handed over when
+     * given back by another call -- unless none is given back in time. Every acquired slot
+     * must be given back, through either {@link #release(long, boolean)} or {@link #cancel()}.
+     * @return future time at which slot was acquired (as of System.nanoTime), completed
+     * exceptionally with {@link LimitExceededException} if no slot became available in time
+     */
+    /* package private */ CompletableFuture<Long> acquireAsync() {
+        if (unlimited) {
+            return CompletableFuture.completedFuture(System.nanoTime());
+        }
+        final CompletableFuture<Long> slot = new CompletableFuture<>();
+        lock.lock();
+        try {
+            if (inFlight < (int) limit && waiters.isEmpty()) {
+                inFlight++;
+                slot.complete(System.nanoTime());
+                return slot;
+            }
+            if (queueNanos <= 0L) {
+                refused.increment();
+                slot.completeExceptionally(new LimitExceededException(uri, (int) limit));
+                return slot;
+            }
+            waiters.add(slot);
+            queued++;
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            Workers.scheduler().schedule(() -> expire(slot), queueNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException ree) {
+            // Shutting down, so the slot is left to be handed over (if ever)
+        }
+        return slot;
+    }
+
+    /*
+     * Refuses non-blocking call that has waited too long for a slot, unless already handed one.
+     */
+    private void expire(CompletableFuture<Long> slot) {
+        int _limit;
+        lock.lock();
+        try {
+            if (!waiters.remove(slot)) {
+                return;
+            }
+            queued--;
+            refused.increment();
+            _limit = (int) limit;
+        } finally {
+            lock.unlock();
+        }
+        slot.completeExceptionally(new LimitExceededException(uri, _limit));
+    }
+
+    /*
+     * Hands slots given back to waiting non-blocking calls, if any. Must be called with lock held,
+     * while the (thus acquired) slots are completed after the lock is released.
+     */
+    private List<CompletableFuture<Long>> handOver() {
+        List<CompletableFuture<Long>> slots = null;
+        while (inFlight < (int) limit && !waiters.isEmpty()) {
+            if (null == slots) {
+                slots = new ArrayList<>();
+            }
+            slots.add(waiters.poll());
+            queued--;
+            inFlight++;
+        }
+        return slots;
+    }
+
+    private static void complete(List<CompletableFuture<Long>> slots) {
+        if (null != slots) {
+            for (CompletableFuture<Long> slot : slots) {
+                slot.complete(System.nanoTime());
+            }
+        }
+    }
+
+    /**
+     * Gives back slot, after call was made, adjusting limit based on outcome.
+     * @param start as returned by {@link #acquire()}
+     * @param failed whether backend failed (could not be reached or answered with 5xx)
+     */
+    /* package private */ void release(long start, boolean failed) {
+        if (unlimited) {
+            return;
+        }
+        long now = System.nanoTime();
+        double latency = now - start;
+
+        List<CompletableFuture<Long>> slots;
+        lock.lock();
+        try {
+            boolean saturated = inFlight >= (int) limit;
+            inFlight--;
+
+            if (!failed) {
+                // Unloaded latency is taken as the least latency observed during the last (one or two)
+                // windows, so that it eventually follows a backend that has become permanently slower
+                if (now - windowStart > BASELINE_WINDOW_NANOS) {
+                    previousMinNanos = currentMinNanos;
+                    currentMinNanos = latency;
+                    windowStart = now;
+                } else {
+                    currentMinNanos = Math.min(currentMinNanos, latency);
+                }
+                smoothedNanos = 0.0 == smoothedNanos ? latency : smoothedNanos + SMOOTHING * (latency - smoothedNanos);
+            }
+            double baselineNanos = Math.min(previousMinNanos, currentMinNanos);
+
+            // Latency only signals that we load the backend too hard if we are using the full limit,
+            // otherwise a backend with heavy tail latency would have its limit cut for no reason
+            if (failed || (saturated && smoothedNanos > LATENCY_TOLERANCE * baselineNanos)) {
+                // Multiplicative decrease, at most once per round trip
+                if (now - lastDecrease > smoothedNanos) {
+                    limit = Math.max(1.0, limit * BACKOFF_RATIO);
+                    lastDecrease = now;
+                }
+            } else if (saturated) {
+                // Additive increase, i.e. one per round trip (in total over all calls)
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+            }
+            slots = handOver();
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        complete(slots);
+    }
+
+    /**
+     * Gives back slot, without call having been made.
+     */
+    /* package private */ void cancel() {
+        if (unlimited) {
+            return;
+        }
+        List<CompletableFuture<Long>> slots;
+        lock.lock();
+        try {
+            inFlight--;
+            slots = handOver();
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+        complete(slots);
+    }
+
+    private int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int getQueued() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2018 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.gautelis.restitch;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Local index of correlation IDs seen recently, used to avoid asking the database whether
+ * a process invocation was re-issued.
+ * <p>
+ * Correlation IDs of created processes are kept in a (Bloom) filter that covers the period
+ * during which the process manager tracks processes, so a correlation ID not in the filter
+ * is known not to have been used -- by this node. A correlation ID that is in the filter
+ * may have been used, and has to be confirmed against the database.
+ * <p>
+ * The filter is split in two generations, each covering the retention window, and the
+ * older generation is dropped as a new one is started. Until the node has been up for
+ * a full retention window, the filter does not know of processes created before start,
+ * and all invocations are confirmed against the database.
+ * <p>
+ * Correlation IDs of processes being created right now are held exactly, so concurrent
+ * invocations with the same correlation ID are caught without involving the database.
+ */
+/* package private */ class CorrelationIdIndex {
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+
+    private final boolean enabled;
+    private final int capacity;
+    private final long windowNanos;
+    private final long warmAfter;
+
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    private volatile BloomFilter current;
+    private volatile BloomFilter previous;
+    private volatile long generationStart;
+
+    /**
+     * @param enabled whether the index may be trusted at all, i.e. if this node is the only one creating processes
+     * @param capacity expected number of processes created per retention window
+     * @param windowMinutes retention window, typically 'minutes-to-track-process'
+     */
+    /* package private */ CorrelationIdIndex(boolean enabled, int capacity, int windowMinutes) {
+        this.enabled = enabled && capacity > 0 && windowMinutes > 0;
+        this.capacity = Math.max(capacity, 1);
+        this.windowNanos = TimeUnit.MINUTES.toNanos(Math.max(windowMinutes, 1));
+
+        long now = System.nanoTime();
+        this.generationStart = now;
+        this.warmAfter = now + windowNanos;
+        this.current = new BloomFilter(this.capacity, FALSE_POSITIVE_RATE);
+        this.previous = new BloomFilter(1, FALSE_POSITIVE_RATE);
+
+        Metrics.gauge("restitch_duplicate_index_pending", pending::size);
+    }
+
+    /**
+     * Claims correlation ID for a process about to be created.
+     * @return false if a process with the same correlation ID is being created right now
+     */
+    /* package private */ boolean claim(String correlationId) {
+        return pending.add(correlationId);
+    }
+
+    /**
+     * Releases claim, after process was created (or failed to be created).
+     * @param created whether process was created
+     */
+    /* package private */ void release(String correlationId, boolean created) {
+        if (created) {
+            rotateIfNeeded().put(correlationId);
+        }
+        pending.remove(correlationId);
+    }
+
+    /**
+     * @return true if correlation ID may have been used and has to be confirmed against the database
+     */
+    /* package private */ boolean mightContain(String correlationId) {
+        if (!enabled || System.nanoTime() - warmAfter < 0) {
+            return true;
+        }
+        rotateIfNeeded();
+        return current.mightContain(correlationId) || previous.mightContain(correlationId);
+    }
+
+    private BloomFilter rotateIfNeeded() {
+        if (System.nanoTime() - generationStart >= windowNanos) {
+            synchronized (this) {
+                long now = System.nanoTime();
+                if (now - generationStart >= windowNanos) {
+                    previous = current;
+                    current = new BloomFilter(capacity, FALSE_POSITIVE_RATE);
+                    generationStart = now;
+                }
+            }
+        }
+        return current;
+    }
+
+    /*
+     * Thread safe Bloom filter, using double hashing over a 64 bit hash of the correlation ID.
+     */
+    private static class BloomFilter {
+        private final AtomicLongArray bits;
+        private final long numBits;
+        private final int numHashes;
+
+        private BloomFilter(int expectedInsertions, double falsePositiveRate) {
+            long m = (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+            int words = (int) Math.max(1, (m + 63) / 64);
+            this.bits = new AtomicLongArray(words);
+            this.numBits = (long) words * 64;
+            this.numHashes = Math.max(1, (int) Math.round((double) m / expectedInsertions * Math.log(2)));
+        }
+
+        private void put(String key) {
+            long hash = hash(key);
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 1; i <= numHashes; i++) {
+                long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+                int word = (int) (bit >>> 6);
+                long mask = 1L << bit;
+                long value;
+                do {
+                    value = bits.get(word);
+                    if ((value & mask) != 0) {
+                        break;
+                    }
+                } while (!bits.compareAndSet(word, value, value | mask));
+            }
+        }
+
+        private boolean mightContain(String key) {
+            long hash = hash(key);
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 1; i <= numHashes; i++) {
+                long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+                if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /*
+         * 64 bit FNV-1a, with a final avalanche step (from MurmurHash3)
+         */
+        private static long hash(String key) {
+            long h = 0xcbf29ce484222325L;
+            for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+                h ^= (b & 0xff);
+                h *= 0x100000001b3L;
+            }
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb9fe1a85ec53L;
+            h ^= h >>> 33;
+            return h;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2018 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.gautelis.restitch;
+
+import org.gautelis.muprocessmanager.MuActivityParameters;
+import org.gautelis.muprocessmanager.MuForwardBehaviour;
+import org.gautelis.muprocessmanager.MuOrchestrationParameters;
+import org.gautelis.muprocessmanager.MuProcess;
+import org.gautelis.muprocessmanager.MuProcessException;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A process, as compiled from the process specification when it is loaded.
+ * <p>
+ * Everything that does not depend on the individual invocation -- transports, URIs, call
+ * policies and orchestration parameters (compensation URIs) -- is prepared once and shared by all
+ * invocations of the process, so that an invocation only creates what is particular to it:
+ * the activities (holding correlation ID and payload) handed to the process manager.
+ * <p>
+ * Plans are immutable. Orchestration parameters are shared with the process manager, and
+ * must not be modified once the plan is compiled.
+ */
+/* package private */ final class ExecutionPlan {
+
+    /**
+     * An activity, or a stage of activities that are run concurrently.
+     */
+    /* package private */ static final class Step {
+        /* package private */ final URI invocationURI; // null if parallel stage
+        /* package private */ final URI compensationURI; // null if not compensated
+        /* package private */ final Transport transport;
+        /* package private */ final List<Step> stage; // null unless parallel stage
+        /* package private */ final ProcessMetrics.Step metrics; // null if parallel stage
+        /* package private */ final CallPolicy forward; // null if parallel stage
+        /* package private */ final CallPolicy backward; // null if parallel stage
+
+        // Null if there is nothing to compensate
+        private final MuOrchestrationParameters orchestrationParameters;
+
+        /**
+         * @param index of step in process, e.g. "2" or "2.1" for an activity in a parallel stage
+         */
+        private Step(ProcessSpecification.Specification specification, String processMoniker, String index) {
+            if (specification.isParallelStage()) {
+                this.invocationURI = null;
+                this.compensationURI = null;
+                this.transport = Transport.BLOCKING;
+                this.metrics = null;
+                this.forward = null;
+                this.backward = null;
+
+                List<Step> _stage = new ArrayList<>(specification.getParallel().size());
+                for (ProcessSpecification.Specification s : specification.getParallel()) {
+                    _stage.add(new Step(s, processMoniker, index + "." + _stage.size()));
+                }
+                this.stage = Collections.unmodifiableList(_stage);
+                this.orchestrationParameters = ParallelActivity.getOrchestrationParameters(stage).orElse(null);
+
+            } else {
+                this.invocationURI = specification.getInvocationURI();
+                this.compensationURI = specification.getCompensationURI().orElse(null);
+                this.transport = specification.getTransport();
+                this.stage = null;
+                this.metrics = new ProcessMetrics.Step(processMoniker, index, invocationURI, compensationURI);
+                this.forward = CallPolicy.forward(specification);
+                this.backward = CallPolicy.backward(specification);
+
+                if (null != compensationURI) {
+                    MuOrchestrationParameters _orchestrationParameters = new MuOrchestrationParameters();
+                    _orchestrationParameters.put("compensation-uri", compensationURI.toString());
+                    if (Transport.BLOCKING != transport) {
+                        _orchestrationParameters.put("transport", transport.moniker());
+                    }
+                    this.orchestrationParameters = _orchestrationParameters;
+                } else {
+                    this.orchestrationParameters = null;
+                }
+            }
+        }
+
+        /* package private */ boolean isParallelStage() {
+            return null != stage;
+        }
+
+        /* package private */ boolean isCompensated() {
+            return null != compensationURI;
+        }
+
+        /**
+         * Runs step as part of process.
+         */
+        private void execute(
+                MuProcess process, String correlationId, Payload payload, MuActivityParameters activityParameters
+        ) throws MuProcessException {
+            if (null != stage) {
+                // Activities in stage are run concurrently
+                if (null != orchestrationParameters) {
+                    process.execute(new ParallelActivity(correlationId, stage, payload), activityParameters, orchestrationParameters);
+                } else {
+                    // No compensatable activities in stage
+                    process.execute((MuForwardBehaviour) new ParallelActivity(correlationId, stage, payload), activityParameters);
+                }
+            } else if (null != orchestrationParameters) {
+                process.execute(new CompensatedActivity(correlationId, invocationURI, transport, payload, metrics, forward, backward), activityParameters, orchestrationParameters);
+            } else {
+                process.execute(new UncompensatedActivity(correlationId, invocationURI, transport, payload, metrics, forward), activityParameters);
+            }
+        }
+    }
+
+    private final String processMoniker;
+    private final List<Step> steps;
+    private final List<URI> invocationURIs;
+    private final boolean asynchronous;
+    private final ProcessMetrics metrics;
+
+    private ExecutionPlan(String processMoniker, List<ProcessSpecification.Specification> specificationList, boolean asynchronous) {
+        this.processMoniker = processMoniker;
+        this.asynchronous = asynchronous;
+        this.metrics = new ProcessMetrics(processMoniker);
+
+        List<Step> _steps = new ArrayList<>(specificationList.size());
+        Set<URI> uris = new LinkedHashSet<>();
+        for (ProcessSpecification.Specification specification : specificationList) {
+            Step step = new Step(specification, processMoniker, String.valueOf(_steps.size()));
+            _steps.add(step);
+            if (step.isParallelStage()) {
+                step.stage.forEach(s -> uris.add(s.invocationURI));
+            } else {
+                uris.add(step.invocationURI);
+            }
+        }
+        this.steps = Collections.unmodifiableList(_steps);
+        this.invocationURIs = Collections.unmodifiableList(new ArrayList<>(uris));
+    }
+
+    /**
+     * Compiles a (validated) process.
+     */
+    /* package private */ static ExecutionPlan compile(
+            String processMoniker, List<ProcessSpecification.Specification> specificationList, boolean asynchronous
+    ) {
+        return new ExecutionPlan(processMoniker, specificationList, asynchronous);
+    }
+
+    /* package private */ String getProcessMoniker() {
+        return processMoniker;
+    }
+
+    /* package private */ boolean isEmpty() {
+        return steps.isEmpty();
+    }
+
+    /**
+     * @return true if process is always run asynchronously
+     */
+    /* package private */ boolean isAsynchronous() {
+        return asynchronous;
+    }
+
+    /**
+     * @return (distinct) backends invoked by process, in order of appearance
+     */
+    /* package private */ List<URI> getInvocationURIs() {
+        return invocationURIs;
+    }
+
+    /* package private */ ProcessMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Runs all steps of plan, as part of process.
+     */
+    /* package private */ void execute(
+            MuProcess process, String correlationId, Payload payload, MuActivityParameters activityParameters
+    ) throws MuProcessException {
+        for (int i = 0; i < steps.size(); i++) {
+            steps.get(i).execute(process, correlationId, payload, activityParameters);
+        }
+    }
+}
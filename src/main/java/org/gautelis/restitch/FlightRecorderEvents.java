@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2018 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.gautelis.restitch;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import java.net.URI;
+
+/**
+ * Java Flight Recorder events, emitted through {@link FlightRecording} (which is the only
+ * class referring to this one, so that these classes are not loaded where JFR is missing).
+ * <p>
+ * Events are created when begun and then handed back as plain objects. If the event is not
+ * enabled in any recording, nothing is begun and null is handed back.
+ */
+/* package private */ final class FlightRecorderEvents {
+    private static final String CATEGORY = "Restitch";
+
+    @Name("org.gautelis.restitch.Process")
+    @Label("Process")
+    @Description("A process, from creation until it succeeded, was compensated or failed")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class ProcessEvent extends Event {
+        @Label("Process Moniker")
+        String processMoniker;
+
+        @Label("Correlation ID")
+        String correlationId;
+
+        @Label("Status")
+        @Description("Status of response to invocation request")
+        int status;
+
+        @Label("Outcome")
+        String outcome;
+    }
+
+    @Name("org.gautelis.restitch.Step")
+    @Label("Step")
+    @Description("A step of a process, invoked (forward) or compensated (backward)")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class StepEvent extends Event {
+        @Label("Process Moniker")
+        String processMoniker;
+
+        @Label("Correlation ID")
+        String correlationId;
+
+        @Label("Step")
+        String step;
+
+        @Label("Direction")
+        String direction;
+
+        @Label("URI")
+        String uri;
+
+        @Label("Outcome")
+        String outcome;
+    }
+
+    @Name("org.gautelis.restitch.BackendCall")
+    @Label("Backend Call")
+    @Description("An attempt at calling a backend, as part of a step")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class BackendCallEvent extends Event {
+        @Label("Correlation ID")
+        String correlationId;
+
+        @Label("URI")
+        String uri;
+
+        @Label("Attempt")
+        int attempt;
+
+        @Label("Status")
+        @Description("Status of reply, or 0 if backend did not reply")
+        int status;
+
+        @Label("Bytes Sent")
+        @DataAmount
+        long bytesSent;
+
+        @Label("Bytes Received")
+        @DataAmount
+        long bytesReceived;
+    }
+
+    @Name("org.gautelis.restitch.ProcessManagerCall")
+    @Label("Process Manager Call")
+    @Description("A call to the process manager, that (typically) involves the database")
+    @Category(CATEGORY)
+    static final class ProcessManagerCallEvent extends Event {
+        @Label("Operation")
+        String operation;
+
+        @Label("Correlation ID")
+        String correlationId;
+    }
+
+    private FlightRecorderEvents() {}
+
+    /* package private */ static Object beginProcess() {
+        ProcessEvent event = new ProcessEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    /* package private */ static void endProcess(Object _event, String processMoniker, String correlationId, int status, String outcome) {
+        ProcessEvent event = (ProcessEvent) _event;
+        event.end();
+        if (event.shouldCommit()) {
+            event.processMoniker = processMoniker;
+            event.correlationId = correlationId;
+            event.status = status;
+            event.outcome = outcome;
+            event.commit();
+        }
+    }
+
+    /* package private */ static Object beginStep() {
+        StepEvent event = new StepEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    /* package private */ static void endStep(
+            Object _event, String correlationId, String processMoniker, String step, String direction, URI uri, String outcome
+    ) {
+        StepEvent event = (StepEvent) _event;
+        event.end();
+        if (event.shouldCommit()) {
+            event.processMoniker = processMoniker;
+            event.correlationId = correlationId;
+            event.step = step;
+            event.direction = direction;
+            event.uri = null != uri ? uri.toString() : null;
+            event.outcome = outcome;
+            event.commit();
+        }
+    }
+
+    /* package private */ static Object beginBackendCall() {
+        BackendCallEvent event = new BackendCallEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    /* package private */ static void endBackendCall(
+            Object _event, String correlationId, URI uri, int attempt, int status, long bytesSent, long bytesReceived
+    ) {
+        BackendCallEvent event = (BackendCallEvent) _event;
+        event.end();
+        if (event.shouldCommit()) {
+            event.correlationId = correlationId;
+            event.uri = uri.toString();
+            event.attempt = attempt;
+            event.status = status;
+            event.bytesSent = bytesSent;
+            event.bytesReceived = bytesReceived;
+            event.commit();
+        }
+    }
+
+    /* package private */ static Object beginProcessManagerCall() {
+        ProcessManagerCallEvent event = new ProcessManagerCallEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    /* package private */ static void endProcessManagerCall(Object _event, String operation, String correlationId) {
+        ProcessManagerCallEvent event = (ProcessManagerCallEvent) _event;
+        event.end();
+        if (event.shouldCommit()) {
+            event.operation = operation;
+            event.correlationId = correlationId;
+            event.commit();
+        }
+    }
+}
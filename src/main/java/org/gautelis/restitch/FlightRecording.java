@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2018 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.gautelis.restitch;
+
+import java.net.URI;
+
+/**
+ * Emits Java Flight Recorder events for processes, steps, backend calls and calls to the
+ * process manager, so that slow processes may be correlated with e.g. GC and lock events
+ * in one recording:
+ * <pre>
+ * jcmd &lt;pid&gt; JFR.start name=restitch settings=profile duration=60s filename=restitch.jfr
+ * </pre>
+ * Events are begun by the begin* methods, which hand back an event (or null), that is
+ * then handed to the corresponding end* method. Unless recording (or running on a runtime
+ * without JFR), nothing is begun and ending does nothing, so this costs next to nothing.
+ */
+/* package private */ final class FlightRecording {
+    // JFR is not available on all runtimes, e.g. Java 8 before 8u262
+    private static final boolean available = isAvailable();
+
+    private FlightRecording() {}
+
+    private static boolean isAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    /* package private */ static Object beginProcess() {
+        return available ? FlightRecorderEvents.beginProcess() : null;
+    }
+
+    /**
+     * @param status of response to invocation request (see {@link ProcessMetrics#outcomeOf(int)})
+     */
+    /* package private */ static void endProcess(Object event, String processMoniker, String correlationId, int status) {
+        if (null != event) {
+            FlightRecorderEvents.endProcess(event, processMoniker, correlationId, status, ProcessMetrics.outcomeOf(status));
+        }
+    }
+
+    /* package private */ static Object beginStep() {
+        return available ? FlightRecorderEvents.beginStep() : null;
+    }
+
+    /**
+     * @param metrics of step, or null if not known (i.e. when compensating in the background)
+     * @param direction "forward" or "backward"
+     */
+    /* package private */ static void endStep(
+            Object event, String correlationId, ProcessMetrics.Step metrics, String direction, URI uri, ProcessMetrics.Outcome outcome
+    ) {
+        if (null != event) {
+            FlightRecorderEvents.endStep(
+                    event, correlationId, null != metrics ? metrics.getProcessMoniker() : null,
+                    null != metrics ? metrics.getStep() : null, direction, uri, outcome.name().toLowerCase()
+            );
+        }
+    }
+
+    /* package private */ static Object beginBackendCall() {
+        return available ? FlightRecorderEvents.beginBackendCall() : null;
+    }
+
+    /**
+     * @param status of reply, or 0 if backend did not reply
+     */
+    /* package private */ static void endBackendCall(
+            Object event, String correlationId, URI uri, int attempt, int status, long bytesSent, long bytesReceived
+    ) {
+        if (null != event) {
+            FlightRecorderEvents.endBackendCall(event, correlationId, uri, attempt, status, bytesSent, bytesReceived);
+        }
+    }
+
+    /* package private */ static Object beginProcessManagerCall() {
+        return available ? FlightRecorderEvents.beginProcessManagerCall() : null;
+    }
+
+    /* package private */ static void endProcessManagerCall(Object event, String operation, String correlationId) {
+        if (null != event) {
+            FlightRecorderEvents.endProcessManagerCall(event, operation, correlationId);
+        }
+    }
+}
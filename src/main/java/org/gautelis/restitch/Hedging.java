@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2018 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.gautelis.restitch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * Hedging of calls to a backend (URI) made by an idempotent step, cutting tail latency.
+ * <p>
+ * If a call has not been answered within a percentile of recently observed latencies, a
+ * second (hedged) call is made to the same or an alternate backend. Whichever call is
+ * answered first is used, and the other call is cancelled. Hedging starts once enough
+ * calls have been observed, and since only calls slower than the percentile are hedged,
+ * the additional load on the backend is bounded by the percentile.
+ */
+/* package private */ class Hedging {
+    private static final Logger log = LoggerFactory.getLogger(Hedging.class);
+
+    private static final int SAMPLES = 1024; // power of two
+    private static final int MIN_SAMPLES = 100;
+    private static final int RECOMPUTE_INTERVAL = 64;
+
+    // Keyed by backend, alternate backend and percentile, so that steps hedged the same way share latencies
+    private static final Map<String, Hedging> hedges = new ConcurrentHashMap<>();
+
+    private final URI uri;
+    private final URI alternateURI;
+    private final double percentile;
+
+    // Recent latencies, as a ring buffer
+    private final AtomicLongArray samples = new AtomicLongArray(SAMPLES);
+    private final AtomicLong count = new AtomicLong();
+    private volatile long delayNanos = Long.MAX_VALUE; // no hedging until warm
+
+    private final LongAdder hedged;
+    private final LongAdder won;
+
+    private Hedging(URI uri, URI alternateURI, double percentile) {
+        this.uri = uri;
+        this.alternateURI = alternateURI;
+        this.percentile = percentile;
+
+        this.hedged = Metrics.counter(Metrics.series("restitch_hedged_total", "uri", uri.toString()));
+        this.won = Metrics.counter(Metrics.series("restitch_hedge_wins_total", "uri", uri.toString()));
+        Metrics.gauge(Metrics.series("restitch_hedge_delay_millis", "uri", uri.toString()),
+                () -> Long.MAX_VALUE == delayNanos ? -1L : TimeUnit.NANOSECONDS.toMillis(delayNanos));
+    }
+
+    /**
+     * Finds hedging of invocations of a step, as stated in the process specification. Hedging
+     * is part of the execution plan of a process, so that only the steps marked idempotent
+     * are hedged -- even if other steps invoke the same backend.
+     * @return hedging, or null if step is not idempotent
+     */
+    /* package private */ static Hedging of(ProcessSpecification.Specification s) {
+        if (!s.isIdempotent()) {
+            return null;
+        }
+        URI uri = s.getInvocationURI();
+        URI alternateURI = s.getHedgeURI().orElse(uri);
+        double percentile = s.getHedgePercentile();
+
+        return hedges.computeIfAbsent(key(uri, alternateURI, percentile), k -> {
+            log.info("Hedging calls to {} (to {}) slower than p{}", uri, alternateURI, percentile);
+            return new Hedging(uri, alternateURI, percentile);
+        });
+    }
+
+    /**
+     * Forgets hedging no longer stated in the (reloaded) process specification. Observed
+     * latencies are kept for backends that are still hedged the same way, while processes
+     * already running keep hedging as when they started.
+     */
+    /* package private */ static synchronized void configure(ProcessSpecification specification) {
+        Set<String> configured = new HashSet<>();
+        specification.forEachSpecification(s -> {
+            if (s.isIdempotent()) {
+                configured.add(key(s.getInvocationURI(), s.getHedgeURI().orElse(s.getInvocationURI()), s.getHedgePercentile()));
+            }
+        });
+
+        hedges.entrySet().removeIf(e -> {
+            if (configured.contains(e.getKey())) {
+                return false;
+            }
+            Hedging hedging = e.getValue();
+            log.info("No longer hedging calls to {} (to {}) slower than p{}", hedging.uri, hedging.alternateURI, hedging.percentile);
+            if (hedges.values().stream().noneMatch(h -> h != hedging && h.uri.equals(hedging.uri))) {
+                Metrics.removeGauge(Metrics.series("restitch_hedge_delay_millis", "uri", hedging.uri.toString()));
+            }
+            return true;
+        });
+    }
+
+    private static String key(URI uri, URI alternateURI, double percentile) {
+        return uri + " " + alternateURI + " " + percentile;
+    }
+
+    /**
+     * Records latency of a call to backend. Latency of cancelled calls should be recorded
+     * as well (as a lower bound), since they are the slow ones.
+     */
+    /* package private */ void record(long latencyNanos) {
+        long n = count.incrementAndGet();
+        samples.set((int) ((n - 1) & (SAMPLES - 1)), latencyNanos);
+        if (n >= MIN_SAMPLES && (n == MIN_SAMPLES || n % RECOMPUTE_INTERVAL == 0)) {
+            int size = (int) Math.min(n, SAMPLES);
+            long[] latencies = new long[size];
+            for (int i = 0; i < size; i++) {
+                latencies[i] = samples.get(i);
+            }
+            Arrays.sort(latencies);
+            delayNanos = latencies[Math.max(0, (int) Math.ceil(percentile / 100.0 * size) - 1)];
+        }
+    }
+
+    /**
+     * Makes a call to backend, hedging it if it is not answered in time. Calls are made by
+     * completing the future handed to the call, which in turn is cancelled if the call loses
+     * the race.
+     * @param primary makes the first call, possibly in calling thread
+     * @param secondary makes the hedged call, without blocking
+     * @return future reply of whichever call was answered first
+     */
+    /* package private */ CompletableFuture<AsyncBackendClient.Reply> race(
+            BiConsumer<URI, CompletableFuture<AsyncBackendClient.Reply>> primary,
+            BiConsumer<URI, CompletableFuture<AsyncBackendClient.Reply>> secondary
+    ) {
+        final Race race = new Race();
+
+        long delay = delayNanos;
+        if (Long.MAX_VALUE != delay) {
+            try {
+                race.timer = Workers.scheduler().schedule(() -> {
+                    if (race.startHedge()) {
+                        hedged.increment();
+                        log.trace("Hedging call to {}", uri);
+                        secondary.accept(alternateURI, race.second);
+                    }
+                }, delay, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException ree) {
+                // Shutting down, so don't hedge
+            }
+        }
+
+        race.second.whenComplete((reply, t) -> {
+            if (null == t) {
+                if (race.winner.complete(reply)) {
+                    won.increment();
+                    race.first.cancel(true);
+                }
+            } else {
+                race.failed(t);
+            }
+        });
+        race.first.whenComplete((reply, t) -> {
+            if (null == t) {
+                if (race.winner.complete(reply)) {
+                    race.cancelTimer();
+                    race.second.cancel(true);
+                }
+            } else {
+                race.failed(t);
+            }
+        });
+
+        primary.accept(uri, race.first);
+        return race.winner;
+    }
+
+    /*
+     * A race between a call and (possibly) its hedge. The first reply wins, while a failed
+     * call has to wait for the other call (if any) to fail as well.
+     */
+    private static class Race {
+        private final CompletableFuture<AsyncBackendClient.Reply> winner = new CompletableFuture<>();
+        private final CompletableFuture<AsyncBackendClient.Reply> first = new CompletableFuture<>();
+        private final CompletableFuture<AsyncBackendClient.Reply> second = new CompletableFuture<>();
+
+        private volatile Future<?> timer = null;
+
+        // Guarded by this
+        private int running = 1;
+        private Throwable failure = null;
+
+        private synchronized boolean startHedge() {
+            if (winner.isDone() || 0 == running) {
+                return false;
+            }
+            running++;
+            return true;
+        }
+
+        private synchronized void failed(Throwable t) {
+            if (null == failure) {
+                failure = t;
+            }
+            if (--running == 0) {
+                cancelTimer();
+                winner.completeExceptionally(failure);
+            }
+        }
+
+        private void cancelTimer() {
+            Future<?> _timer = timer;
+            if (null != _timer) {
+                _timer.cancel(false);
+            }
+        }
+    }
+}
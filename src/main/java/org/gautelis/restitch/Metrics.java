@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2018 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.gautelis.restitch;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Registry of restitch specific metrics (gauges, counters and histograms), kept apart from the
+ * msf4j metrics since these are not tied to individual resource methods.
+ * <p>
+ * Metrics are named as Prometheus series, i.e. name and (optional) labels, such as
+ * {@code restitch_http_pool_leased{pool="shared"}}, and may be scraped in the Prometheus
+ * text format.
+ */
+public final class Metrics {
+    private static final Map</* series */ String, Supplier<? extends Number>> gauges = new ConcurrentHashMap<>();
+    private static final Map</* series */ String, LongAdder> counters = new ConcurrentHashMap<>();
+    private static final Map</* series */ String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    /**
+     * A latency histogram, having fixed buckets (as Prometheus histograms), so that recording
+     * is cheap enough to stay on in production: finding the bucket and incrementing two adders.
+     */
+    public static final class Histogram {
+        // Upper bounds of buckets, in nanoseconds (the last bucket being unbounded)
+        private static final long[] BOUNDS = {
+                TimeUnit.MICROSECONDS.toNanos(1000), TimeUnit.MICROSECONDS.toNanos(2500), TimeUnit.MICROSECONDS.toNanos(5000),
+                TimeUnit.MILLISECONDS.toNanos(10), TimeUnit.MILLISECONDS.toNanos(25), TimeUnit.MILLISECONDS.toNanos(50),
+                TimeUnit.MILLISECONDS.toNanos(100), TimeUnit.MILLISECONDS.toNanos(250), TimeUnit.MILLISECONDS.toNanos(500),
+                TimeUnit.SECONDS.toNanos(1), TimeUnit.MILLISECONDS.toNanos(2500), TimeUnit.SECONDS.toNanos(5),
+                TimeUnit.SECONDS.toNanos(10), TimeUnit.SECONDS.toNanos(30), TimeUnit.SECONDS.toNanos(60)
+        };
+
+        private final String name;
+        private final String labels; // as in series, without braces
+        private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+        private final LongAdder sumNanos = new LongAdder();
+
+        private Histogram(String series) {
+            int brace = series.indexOf('{');
+            this.name = brace < 0 ? series : series.substring(0, brace);
+            this.labels = brace < 0 ? "" : series.substring(brace + 1, series.length() - 1);
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * Records a duration.
+         */
+        public void record(long nanos) {
+            int i = 0;
+            while (i < BOUNDS.length && nanos > BOUNDS[i]) {
+                i++;
+            }
+            buckets[i].increment();
+            sumNanos.add(nanos);
+        }
+
+        public long getCount() {
+            long count = 0L;
+            for (LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        public double getSumSeconds() {
+            return sumNanos.sum() / 1e9;
+        }
+
+        /*
+         * Writes histogram in the Prometheus text format, i.e. cumulative buckets, sum and count.
+         */
+        private void write(StringBuilder buf) {
+            String prefix = labels.isEmpty() ? "{" : "{" + labels + ",";
+            long cumulative = 0L;
+            for (int i = 0; i < buckets.length; i++) {
+                cumulative += buckets[i].sum();
+                String le = i < BOUNDS.length ? format(BOUNDS[i] / 1e9) : "+Inf";
+                buf.append(name).append("_bucket").append(prefix).append("le=\"").append(le).append("\"} ").append(cumulative).append('\n');
+            }
+            String suffix = labels.isEmpty() ? "" : "{" + labels + "}";
+            buf.append(name).append("_sum").append(suffix).append(' ').append(format(getSumSeconds())).append('\n');
+            buf.append(name).append("_count").append(suffix).append(' ').append(cumulative).append('\n');
+        }
+    }
+
+    private Metrics() {}
+
+    /**
+     * Registers a gauge, replacing any earlier gauge with the same name and labels.
+     */
+    public static void gauge(String series, Supplier<? extends Number> supplier) {
+        gauges.put(series, supplier);
+    }
+
+    /**
+     * Removes a gauge, if registered.
+     */
+    public static void removeGauge(String series) {
+        gauges.remove(series);
+    }
+
+    /**
+     * Returns the counter with the given name and labels, creating it if needed.
+     */
+    public static LongAdder counter(String series) {
+        return counters.computeIfAbsent(series, s -> new LongAdder());
+    }
+
+    /**
+     * Returns the histogram with the given name and labels, creating it if needed.
+     */
+    public static Histogram histogram(String series) {
+        return histograms.computeIfAbsent(series, Histogram::new);
+    }
+
+    /**
+     * Composes a series name from a metric name and label name/value pairs.
+     */
+    public static String series(String name, String... labels) {
+        if (labels.length == 0) {
+            return name;
+        }
+        StringBuilder buf = new StringBuilder(name).append('{');
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+            if (i > 0) {
+                buf.append(',');
+            }
+            buf.append(labels[i]).append("=\"");
+            String value = labels[i + 1];
+            for (int j = 0; j < value.length(); j++) {
+                char c = value.charAt(j);
+                if (c == '"' || c == '\\') {
+                    buf.append('\\');
+                }
+                buf.append(c);
+            }
+            buf.append('"');
+        }
+        return buf.append('}').toString();
+    }
+
+    /**
+     * Takes a snapshot of all current values, ordered by series name. Histograms are
+     * represented by their count and sum.
+     */
+    public static Map<String, Number> snapshot() {
+        Map<String, Number> snapshot = new TreeMap<>();
+        counters.forEach((series, counter) -> snapshot.put(series, counter.sum()));
+        gauges.forEach((series, supplier) -> {
+            Number value = supplier.get();
+            if (null != value) {
+                snapshot.put(series, value);
+            }
+        });
+        histograms.values().forEach(histogram -> {
+            String suffix = histogram.labels.isEmpty() ? "" : "{" + histogram.labels + "}";
+            snapshot.put(histogram.name + "_count" + suffix, histogram.getCount());
+            snapshot.put(histogram.name + "_sum" + suffix, histogram.getSumSeconds());
+        });
+        return snapshot;
+    }
+
+    /**
+     * Writes all current values in the Prometheus text format (version 0.0.4), series being
+     * grouped by metric name.
+     */
+    public static String exposition() {
+        Map</* name */ String, Map</* series */ String, Number>> counterFamilies = new TreeMap<>();
+        counters.forEach((series, counter) ->
+                counterFamilies.computeIfAbsent(nameOf(series), n -> new TreeMap<>()).put(series, counter.sum()));
+
+        Map</* name */ String, Map</* series */ String, Number>> gaugeFamilies = new TreeMap<>();
+        gauges.forEach((series, supplier) -> {
+            Number value = supplier.get();
+            if (null != value) {
+                gaugeFamilies.computeIfAbsent(nameOf(series), n -> new TreeMap<>()).put(series, value);
+            }
+        });
+
+        Map</* name */ String, Map</* series */ String, Histogram>> histogramFamilies = new TreeMap<>();
+        histograms.forEach((series, histogram) ->
+                histogramFamilies.computeIfAbsent(histogram.name, n -> new TreeMap<>()).put(series, histogram));
+
+        StringBuilder buf = new StringBuilder();
+        writeFamilies(buf, "counter", counterFamilies);
+        writeFamilies(buf, "gauge", gaugeFamilies);
+        histogramFamilies.forEach((name, family) -> {
+            buf.append("# TYPE ").append(name).append(" histogram\n");
+            family.values().forEach(histogram -> histogram.write(buf));
+        });
+        return buf.toString();
+    }
+
+    private static void writeFamilies(StringBuilder buf, String type, Map<String, Map<String, Number>> families) {
+        families.forEach((name, family) -> {
+            buf.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+            family.forEach((series, value) -> buf.append(series).append(' ').append(format(value.doubleValue())).append('\n'));
+        });
+    }
+
+    private static String nameOf(String series) {
+        int brace = series.indexOf('{');
+        return brace < 0 ? series : series.substring(0, brace);
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2018 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.gautelis.restitch;
+
+import io.swagger.annotations.*;
+import org.wso2.carbon.metrics.core.annotation.Timed;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+@Api(value = "metrics")
+@SwaggerDefinition(
+        info = @Info(
+                title = "Restitch Metrics Swagger Definition", version = "1.0",
+                description = "Restitch metrics service",
+                license = @License(name = "Apache 2.0", url = "http://www.apache.org/licenses/LICENSE-2.0"),
+                contact = @Contact(
+                        name = "Frode Randers",
+                        email = "Frode.Randers@gmail.com",
+                        url = "http://github.com/FrodeRanders/restitch"
+                ))
+)
+@Path("/metrics")
+public class MetricsService {
+
+    /* package private */ MetricsService() {
+    }
+
+    /**
+     * Retrieve current values of restitch metrics, such as HTTP connection pool usage.
+     * <p>
+     * curl http://localhost:8080/metrics
+     * @return map of metric series to values
+     */
+    @GET
+    @Timed
+    @Path("/")
+    @Produces({MediaType.APPLICATION_JSON})
+    @ApiOperation(
+            value = "Return current values of restitch metrics",
+            notes = "Metrics are named as Prometheus series")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200 /* OK */, message = "OK")})
+    public Response getMetrics() {
+        return Response.ok(Metrics.snapshot(), MediaType.APPLICATION_JSON_TYPE).build();
+    }
+
+    /**
+     * Retrieve current values of restitch metrics in the Prometheus text format, including
+     * latency histograms per process and per step of process.
+     * <p>
+     * curl http://localhost:8080/metrics/prometheus
+     * @return metrics in the Prometheus text format (version 0.0.4)
+     */
+    @GET
+    @Path("/prometheus")
+    @Produces({MediaType.TEXT_PLAIN})
+    @ApiOperation(
+            value = "Return current values of restitch metrics, in the Prometheus text format",
+            notes = "Suitable for scraping")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200 /* OK */, message = "OK")})
+    public Response getPrometheusMetrics() {
+        return Response.ok(Metrics.exposition()).type("text/plain; version=0.0.4; charset=utf-8").build();
+    }
+}
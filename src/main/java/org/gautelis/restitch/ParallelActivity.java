@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2018 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.gautelis.restitch;
+
+import org.gautelis.muprocessmanager.MuActivity;
+import org.gautelis.muprocessmanager.MuActivityParameters;
+import org.gautelis.muprocessmanager.MuBackwardActivityContext;
+import org.gautelis.muprocessmanager.MuForwardActivityContext;
+import org.gautelis.muprocessmanager.MuOrchestrationParameters;
+import org.gautelis.muprocessmanager.payload.MuForeignActivityParameters;
+import org.gautelis.muprocessmanager.payload.MuForeignProcessResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * A stage of activities that are run concurrently. To the process manager, the stage is
+ * a single activity: it succeeds if all activities in the stage succeed.
+ * <p>
+ * If any activity in the stage fails, the stage compensates its own successful activities
+ * before reporting failure -- the process manager then takes care of compensating earlier
+ * stages as usual. If any of these compensations fail, the stage throws rather than reporting
+ * failure, so that the process is failed (and later picked up among abandoned processes)
+ * instead of being considered compensated. If the process later fails (in another stage),
+ * all compensatable activities in this stage are compensated.
+ */
+public class ParallelActivity implements MuActivity {
+    private static final Logger log = LoggerFactory.getLogger(ProcessService.class);
+
+    /* package private */ static final String COMPENSATION_URI_PREFIX = "compensation-uri.";
+    /* package private */ static final String TRANSPORT_PREFIX = "transport.";
+
+    private String correlationId = null;
+    private List<ExecutionPlan.Step> stage = null;
+    private Payload payload = null;
+
+    /*
+     * Used by the compensation facilities, where correlation Id et al is not needed
+     */
+    public ParallelActivity() {}
+
+    /* package private */ ParallelActivity(String correlationId, List<ExecutionPlan.Step> stage, Payload payload) {
+        this.correlationId = correlationId;
+        this.stage = stage;
+        this.payload = payload;
+    }
+
+    /**
+     * Composes orchestration parameters for a stage, i.e. the compensation URIs of all
+     * compensatable activities in the stage.
+     * @return orchestration parameters, if any activity in stage is compensatable
+     */
+    /* package private */ static Optional<MuOrchestrationParameters> getOrchestrationParameters(List<ExecutionPlan.Step> stage) {
+        MuOrchestrationParameters orchestrationParameters = null;
+        int i = 0;
+        for (ExecutionPlan.Step step : stage) {
+            if (step.isCompensated()) {
+                if (null == orchestrationParameters) {
+                    orchestrationParameters = new MuOrchestrationParameters();
+                }
+                if (Transport.BLOCKING != step.transport) {
+                    orchestrationParameters.put(TRANSPORT_PREFIX + i, step.transport.moniker());
+                }
+                orchestrationParameters.put(COMPENSATION_URI_PREFIX + i++, step.compensationURI.toString());
+            }
+        }
+        return Optional.ofNullable(orchestrationParameters);
+    }
+
+    public boolean forward(MuForwardActivityContext context) {
+        /*---------------------------------------------------------------------------------
+         * This is enforced elsewhere!
+         *
+         * if (c.usesNativeDataFlow()) {
+         *    throw new Exception("Configuration error: management policy \"assume-native-process-data-flow\" must be false!");
+         * }
+         *--------------------------------------------------------------------------------*/
+        MuForeignProcessResult result = (MuForeignProcessResult) context.getResult();
+
+        final Payload payload = payload(context.getActivityParameters());
+        final int size = stage.size();
+        final String[] results = new String[size];
+
+        List<CompletableFuture<Boolean>> outcomes = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            final int idx = i;
+            ExecutionPlan.Step step = stage.get(i);
+            outcomes.add(run(step.transport, correlationId, step.invocationURI, payload, r -> results[idx] = r, step.metrics, step.forward, true, i == size - 1));
+        }
+
+        boolean success = true;
+        for (CompletableFuture<Boolean> outcome : outcomes) {
+            success &= outcome.join();
+        }
+
+        if (success) {
+            if (null != result) {
+                // Keep results in specification order, independent of completion order
+                for (String r : results) {
+                    if (null != r) {
+                        result.add(r);
+                    }
+                }
+            }
+            return true;
+        }
+
+        // Compensate those activities in this stage that did succeed
+        List<URI> compensationURIs = new ArrayList<>();
+        List<Transport> transports = new ArrayList<>();
+        List<ProcessMetrics.Step> metrics = new ArrayList<>();
+        List<CallPolicy> policies = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            ExecutionPlan.Step step = stage.get(i);
+            if (step.isCompensated() && outcomes.get(i).join()) {
+                compensationURIs.add(step.compensationURI);
+                transports.add(step.transport);
+                metrics.add(step.metrics);
+                policies.add(step.backward);
+            }
+        }
+        if (!compensationURIs.isEmpty() && !compensate(correlationId, compensationURIs, transports, metrics, policies, payload)) {
+            // Reporting a plain failure would have the process manager consider the stage
+            // compensated, so the process is failed instead (and will not count as compensated)
+            String info = "Failed to compensate activities in failed parallel stage (correlation ID \"";
+            info += correlationId;
+            info += "\"): ";
+            info += compensationURIs;
+            log.warn(info);
+            throw new IllegalStateException(info);
+        }
+        return false;
+    }
+
+    public boolean backward(MuBackwardActivityContext context) {
+        Optional<MuOrchestrationParameters> orchestrationParameters = context.getOrchestrationParameters();
+
+        if (!orchestrationParameters.isPresent()) {
+            String info = "Compensation activity needs orchestration data";
+            log.warn(info);
+            return false;
+        }
+
+        List<URI> compensationURIs = new ArrayList<>();
+        List<Transport> transports = new ArrayList<>();
+        List<ProcessMetrics.Step> metrics = new ArrayList<>();
+        List<CallPolicy> policies = new ArrayList<>();
+        String compensationURI;
+        for (int i = 0; null != (compensationURI = orchestrationParameters.get().get(COMPENSATION_URI_PREFIX + i)); i++) {
+            try {
+                URI uri = new URI(compensationURI);
+                compensationURIs.add(uri);
+                transports.add(Transport.of(orchestrationParameters.get().get(TRANSPORT_PREFIX + i)));
+                metrics.add(ProcessMetrics.Step.unknown(uri));
+                policies.add(CallPolicy.NONE);
+
+            } catch (URISyntaxException use) {
+                String info = "The value provided as compensation instance data (\"";
+                info += compensationURI;
+                info += "\") does not qualify as a URI: ";
+                info += use.getMessage();
+                log.info(info);
+                return false;
+
+            } catch (IllegalArgumentException iae) {
+                log.info(iae.getMessage());
+                return false;
+            }
+        }
+
+        if (compensationURIs.isEmpty()) {
+            String info = "Compensation activity needs orchestration data, in this case URI to (remote) service";
+            log.warn(info);
+            return false;
+        }
+
+        /*---------------------------------------------------------------------------------
+         * This is enforced elsewhere!
+         *
+         * if (c.usesNativeDataFlow()) {
+         *    throw new Exception("Configuration error: management policy \"assume-native-process-data-flow\" must be false!");
+         * }
+         *--------------------------------------------------------------------------------*/
+        if (null != stage) {
+            // Compensatable activities in stage, in the same order as in orchestration parameters
+            int i = 0;
+            for (ExecutionPlan.Step step : stage) {
+                if (step.isCompensated() && i < metrics.size()) {
+                    policies.set(i, step.backward);
+                    metrics.set(i++, step.metrics);
+                }
+            }
+        }
+        return compensate(correlationId, compensationURIs, transports, metrics, policies, payload(context.getActivityParameters()));
+    }
+
+    /*
+     * Payload is shared among all activities in a process, but is not available when
+     * compensating in the background (i.e. after a restart).
+     */
+    private Payload payload(MuActivityParameters activityParameters) {
+        if (null != payload) {
+            return payload;
+        }
+        return Payload.of(((MuForeignActivityParameters) activityParameters).toJson());
+    }
+
+    private static boolean compensate(
+            String correlationId, List<URI> compensationURIs, List<Transport> transports, List<ProcessMetrics.Step> metrics,
+            List<CallPolicy> policies, Payload payload
+    ) {
+        final int size = compensationURIs.size();
+        List<CompletableFuture<Boolean>> outcomes = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            outcomes.add(run(transports.get(i), correlationId, compensationURIs.get(i), payload, null, metrics.get(i), policies.get(i), false, i == size - 1));
+        }
+
+        boolean success = true;
+        for (CompletableFuture<Boolean> outcome : outcomes) {
+            success &= outcome.join();
+        }
+        return success;
+    }
+
+    /*
+     * Calls over non-blocking transports complete by themselves, while blocking calls are run
+     * in threads of their own. The last (blocking) call in a stage is made from the calling thread,
+     * which would otherwise just wait.
+     * @param forward true if invoking, false if compensating
+     */
+    private static CompletableFuture<Boolean> run(
+            Transport transport, String correlationId, URI uri, Payload payload, Consumer<String> result,
+            ProcessMetrics.Step metrics, CallPolicy policy, boolean forward, boolean inline
+    ) {
+        if (Transport.BLOCKING != transport) {
+            final long start = System.nanoTime();
+            final ProcessTimelines.Span span = ProcessTimelines.span(correlationId, metrics, forward ? "forward" : "backward", uri);
+            final Object event = FlightRecording.beginStep();
+            return UncompensatedActivity.postAsync(transport, correlationId, uri, payload, result, policy, span).handle((success, t) -> {
+                if (null != t) {
+                    record(metrics, span, event, correlationId, uri, forward, start, ProcessMetrics.Outcome.ERROR);
+                    log.info("Failed to invoke remote service: {}", t.getMessage());
+                    return false;
+                }
+                record(metrics, span, event, correlationId, uri, forward, start, ProcessMetrics.Outcome.of(success));
+                return success;
+            });
+        }
+
+        Supplier<Boolean> call = () -> {
+            final long start = System.nanoTime();
+            final ProcessTimelines.Span span = ProcessTimelines.span(correlationId, metrics, forward ? "forward" : "backward", uri);
+            final Object event = FlightRecording.beginStep();
+            try {
+                boolean success = UncompensatedActivity.post(correlationId, uri, payload, result, policy, span);
+                record(metrics, span, event, correlationId, uri, forward, start, ProcessMetrics.Outcome.of(success));
+                return success;
+            } catch (Throwable t) {
+                record(metrics, span, event, correlationId, uri, forward, start, ProcessMetrics.Outcome.ERROR);
+                log.info("Failed to invoke remote service: {}", t.getMessage());
+                return false;
+            }
+        };
+        if (inline) {
+            return CompletableFuture.completedFuture(call.get());
+        }
+        return CompletableFuture.supplyAsync(call, Workers.activityExecutor());
+    }
+
+    private static void record(
+            ProcessMetrics.Step metrics, ProcessTimelines.Span span, Object event, String correlationId, URI uri,
+            boolean forward, long start, ProcessMetrics.Outcome outcome
+    ) {
+        if (forward) {
+            metrics.forward(start, outcome);
+        } else {
+            metrics.backward(start, outcome);
+        }
+        if (null != span) {
+            span.end(outcome);
+        }
+        FlightRecording.endStep(event, correlationId, metrics, forward ? "forward" : "backward", uri, outcome);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2018 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.gautelis.restitch;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The (JSON) parameters of a process, as posted to every activity in the process.
+ * <p>
+ * The payload is held once, as (UTF-8) bytes, and shared by all activities. The request
+ * entity is repeatable and immutable, so it is created once and reused for all calls (also
+ * concurrent calls in parallel stages) instead of re-encoding the payload for each call.
+ * The JSON text is only decoded when needed, i.e. when handing the parameters to the
+ * process manager, and likewise the digest is only computed when needed.
+ */
+public final class Payload {
+    private final byte[] bytes;
+    private volatile String json = null;
+    private volatile HttpEntity entity = null;
+    private volatile byte[] digest = null;
+
+    private Payload(byte[] bytes, String json) {
+        this.bytes = bytes;
+        this.json = json;
+    }
+
+    /**
+     * Wraps UTF-8 encoded JSON. The bytes must not be modified afterwards.
+     */
+    public static Payload of(byte[] bytes) {
+        return new Payload(bytes, null);
+    }
+
+    /**
+     * Wraps JSON, e.g. as provided by the process manager when compensating.
+     */
+    public static Payload of(String json) {
+        return new Payload(json.getBytes(StandardCharsets.UTF_8), json);
+    }
+
+    /* package private */ byte[] bytes() {
+        return bytes;
+    }
+
+    public int size() {
+        return bytes.length;
+    }
+
+    public String json() {
+        String _json = json;
+        if (null == _json) {
+            _json = new String(bytes, StandardCharsets.UTF_8);
+            json = _json;
+        }
+        return _json;
+    }
+
+    /* package private */ HttpEntity entity() {
+        HttpEntity _entity = entity;
+        if (null == _entity) {
+            _entity = new ByteArrayEntity(bytes, ContentType.APPLICATION_JSON);
+            entity = _entity;
+        }
+        return _entity;
+    }
+
+    /**
+     * @return SHA-256 digest of payload, e.g. used to key cached results of activities
+     */
+    /* package private */ byte[] digest() {
+        byte[] _digest = digest;
+        if (null == _digest) {
+            try {
+                _digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+            } catch (NoSuchAlgorithmException nsae) {
+                // SHA-256 is mandatory for all Java platforms
+                throw new IllegalStateException(nsae.getMessage(), nsae);
+            }
+            digest = _digest;
+        }
+        return _digest;
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2018 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.gautelis.restitch;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonWriter;
+import org.gautelis.muprocessmanager.MuProcessDetails;
+import org.gautelis.muprocessmanager.MuProcessState;
+
+import javax.ws.rs.core.StreamingOutput;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+
+/**
+ * One page of process details, in order of creation, selected from among all processes
+ * matching a filter (on state, process moniker and time of creation).
+ * <p>
+ * Pages are addressed by an opaque cursor, referring to the last process of the previous
+ * page, so paging is stable even if processes are added or removed in between. Only the
+ * processes on the page are held, whatever the number of matching processes, and the page
+ * is written (streamed) one process at a time.
+ */
+/* package private */ class ProcessDetailsPage {
+    /* package private */ static final int DEFAULT_LIMIT = 1000;
+    /* package private */ static final int MAX_LIMIT = 10000;
+
+    private static final Gson gson = new GsonBuilder().create();
+
+    private static final Comparator<MuProcessDetails> ORDER =
+            Comparator.comparingLong((MuProcessDetails d) -> millis(d.getCreated()))
+                    .thenComparing(MuProcessDetails::getCorrelationId);
+
+    private final Set<MuProcessState> states;
+    private final String processMoniker;
+    private final ProcessMonikers monikers;
+    private final Instant since;
+    private final Instant until;
+    private final int limit;
+
+    private long afterCreated = Long.MIN_VALUE;
+    private String afterCorrelationId = null;
+
+    private List<MuProcessDetails> page = Collections.emptyList();
+    private boolean more = false;
+
+    /**
+     * @param state comma separated list of states, or null for any state
+     * @param processMoniker process moniker, or null for any process
+     * @param since ISO-8601 instant, or null
+     * @param until ISO-8601 instant, or null
+     * @param cursor cursor from previous page, or null for first page
+     * @param limit max number of processes on page, or 0 for default
+     * @throws IllegalArgumentException if any parameter is malformed
+     */
+    /* package private */ ProcessDetailsPage(
+            String state, String processMoniker, ProcessMonikers monikers, String since, String until, String cursor, int limit
+    ) {
+        this.states = parseStates(state);
+        this.processMoniker = null == processMoniker || processMoniker.isEmpty() ? null : processMoniker;
+        this.monikers = monikers;
+        this.since = parseInstant("since", since);
+        this.until = parseInstant("until", until);
+        if (limit < 0 || limit > MAX_LIMIT) {
+            throw new IllegalArgumentException("Limit must be between 1 and " + MAX_LIMIT);
+        }
+        this.limit = 0 == limit ? DEFAULT_LIMIT : limit;
+
+        if (null != cursor && !cursor.isEmpty()) {
+            try {
+                String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+                int colon = decoded.indexOf(':');
+                afterCreated = Long.parseLong(decoded.substring(0, colon));
+                afterCorrelationId = decoded.substring(colon + 1);
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                throw new IllegalArgumentException("Invalid cursor: \"" + cursor + "\"");
+            }
+        }
+    }
+
+    /**
+     * Selects page from among all processes, keeping only the processes on the page.
+     */
+    /* package private */ ProcessDetailsPage select(Collection<MuProcessDetails> details) {
+        // Max-heap of the (at most) 'limit' first matching processes after cursor
+        PriorityQueue<MuProcessDetails> selected = new PriorityQueue<>(limit + 1, ORDER.reversed());
+        for (MuProcessDetails d : details) {
+            if (!matches(d)) {
+                continue;
+            }
+            if (selected.size() < limit) {
+                selected.add(d);
+            } else {
+                more = true;
+                if (ORDER.compare(d, selected.peek()) < 0) {
+                    selected.poll();
+                    selected.add(d);
+                }
+            }
+        }
+
+        List<MuProcessDetails> page = new ArrayList<>(selected);
+        page.sort(ORDER);
+        this.page = page;
+        return this;
+    }
+
+    /**
+     * @return cursor to next page, if there are more matching processes
+     */
+    /* package private */ Optional<String> nextCursor() {
+        if (!more || page.isEmpty()) {
+            return Optional.empty();
+        }
+        MuProcessDetails last = page.get(page.size() - 1);
+        String position = millis(last.getCreated()) + ":" + last.getCorrelationId();
+        return Optional.of(Base64.getUrlEncoder().withoutPadding().encodeToString(position.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * @return page as a JSON array, written one process at a time
+     */
+    /* package private */ StreamingOutput asJson() {
+        final List<MuProcessDetails> page = this.page;
+        return os -> {
+            JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8)));
+            writer.beginArray();
+            for (MuProcessDetails d : page) {
+                gson.toJson(d, d.getClass(), writer);
+            }
+            writer.endArray();
+            writer.flush();
+        };
+    }
+
+    private boolean matches(MuProcessDetails d) {
+        if (null != states && !states.contains(d.getState())) {
+            return false;
+        }
+
+        long created = millis(d.getCreated());
+        if (null != afterCorrelationId) {
+            int c = Long.compare(created, afterCreated);
+            if (c < 0 || (c == 0 && d.getCorrelationId().compareTo(afterCorrelationId) <= 0)) {
+                return false;
+            }
+        }
+        if (null != since && created < since.toEpochMilli()) {
+            return false;
+        }
+        if (null != until && created >= until.toEpochMilli()) {
+            return false;
+        }
+
+        // Only processes created by this node are known by moniker
+        return null == processMoniker || processMoniker.equals(monikers.get(d.getCorrelationId()).orElse(null));
+    }
+
+    private static long millis(Date date) {
+        return null != date ? date.getTime() : 0L;
+    }
+
+    private static Set<MuProcessState> parseStates(String state) {
+        if (null == state || state.isEmpty()) {
+            return null;
+        }
+        Set<MuProcessState> states = EnumSet.noneOf(MuProcessState.class);
+        for (String s : state.split(",")) {
+            try {
+                states.add(MuProcessState.valueOf(s.trim().toUpperCase()));
+            } catch (IllegalArgumentException iae) {
+                throw new IllegalArgumentException("Unknown process state: \"" + s.trim() + "\"");
+            }
+        }
+        return states;
+    }
+
+    /* package private */ static Instant parseInstant(String name, String instant) {
+        if (null == instant || instant.isEmpty()) {
+            return null;
+        }
+        try {
+            return Instant.parse(instant);
+        } catch (DateTimeParseException dtpe) {
+            throw new IllegalArgumentException("Parameter '" + name + "' is not an ISO-8601 instant: \"" + instant + "\"");
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2018 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.gautelis.restitch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded executor for processes that are run asynchronously, i.e. after the
+ * invocation request has been answered.
+ * <p>
+ * Capacity is reserved <i>before</i> the process is created, so that a process is never
+ * persisted unless it can also be run. A reservation is either handed over to
+ * {@link #execute(Runnable)} or given back through {@link #release()}.
+ */
+/* package private */ class ProcessExecutor {
+    private static final Logger log = LoggerFactory.getLogger(ProcessExecutor.class);
+
+    private final ExecutorService executor;
+    private final Semaphore capacity;
+    private final int maxProcesses;
+    private final AtomicInteger active = new AtomicInteger();
+
+    // Smoothed time processes wait in queue before being run, as bits of a double
+    private final AtomicLong queueWaitNanos = new AtomicLong(Double.doubleToLongBits(0.0));
+
+    /* package private */ ProcessExecutor(int threads, int queueSize) {
+        if (threads < 1 || queueSize < 0) {
+            String info = "Illegal asynchronous process executor configuration: ";
+            info += threads + " threads, queue size " + queueSize;
+            throw new IllegalArgumentException(info);
+        }
+
+        this.maxProcesses = threads + queueSize;
+        this.capacity = new Semaphore(maxProcesses);
+
+        // Queue is effectively bounded by 'capacity'
+        this.executor = Workers.newProcessExecutor(threads);
+
+        Metrics.gauge("restitch_async_processes_active", active::get);
+        Metrics.gauge("restitch_async_processes_queued", () -> maxProcesses - capacity.availablePermits() - active.get());
+        Metrics.gauge("restitch_async_processes_max", () -> maxProcesses);
+    }
+
+    /**
+     * Reserves capacity for one process.
+     * @return true if capacity was reserved, false if executor is saturated
+     */
+    /* package private */ boolean reserve() {
+        return capacity.tryAcquire();
+    }
+
+    /**
+     * Gives back a reservation that was not used.
+     */
+    /* package private */ void release() {
+        capacity.release();
+    }
+
+    /**
+     * Runs a process, using an earlier reservation. The reservation is handed over only if
+     * the process is accepted, otherwise (i.e. when shutting down) it remains with the caller.
+     * @throws RejectedExecutionException if process could not be accepted
+     */
+    /* package private */ void execute(Runnable process) {
+        final long enqueued = System.nanoTime();
+        executor.execute(() -> {
+            onDequeued(System.nanoTime() - enqueued);
+            active.incrementAndGet();
+            try {
+                process.run();
+            } catch (Throwable t) {
+                log.warn("Asynchronous process failed: {}", t.getMessage(), t);
+            } finally {
+                active.decrementAndGet();
+                capacity.release();
+            }
+        });
+    }
+
+    /**
+     * @return recent time processes have waited in queue before being run, or 0 if none are waiting
+     */
+    /* package private */ long queueWaitNanos() {
+        if (maxProcesses - capacity.availablePermits() - active.get() <= 0) {
+            return 0L;
+        }
+        return (long) Double.longBitsToDouble(queueWaitNanos.get());
+    }
+
+    /*
+     * Updates the smoothed queue wait, given the time a process waited in queue. Processes are
+     * dequeued by many threads at once, so the update is made atomically.
+     */
+    private void onDequeued(long waitNanos) {
+        long current;
+        long next;
+        do {
+            current = queueWaitNanos.get();
+            double smoothed = Double.longBitsToDouble(current);
+            next = Double.doubleToLongBits(smoothed + 0.2 * (waitNanos - smoothed));
+        } while (!queueWaitNanos.compareAndSet(current, next));
+    }
+
+    /* package private */ void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2018 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.gautelis.restitch;
+
+import java.net.URI;
+
+/**
+ * Latencies of a process, and of the calls made by each of its steps, as histograms tagged
+ * by process moniker (and step, backend URI, direction and outcome).
+ * <p>
+ * Histograms are looked up in {@link Metrics} when first recorded to, and then held on to,
+ * so that recording does not compose series names.
+ */
+/* package private */ final class ProcessMetrics {
+    /* package private */ static final String PROCESS_DURATION = "restitch_process_duration_seconds";
+    /* package private */ static final String STEP_DURATION = "restitch_step_duration_seconds";
+
+    // Used when compensating in the background (i.e. after a restart), where process is not known
+    private static final String UNKNOWN = "unknown";
+
+    /* package private */ enum Outcome {
+        SUCCESS("success"),
+        FAILURE("failure"), // e.g. rejected by backend
+        ERROR("error"); // e.g. backend not reachable
+
+        private final String label;
+
+        Outcome(String label) {
+            this.label = label;
+        }
+
+        /* package private */ static Outcome of(boolean success) {
+            return success ? SUCCESS : FAILURE;
+        }
+    }
+
+    /**
+     * Calls made by a step, forward (invoking) and backward (compensating).
+     */
+    /* package private */ static final class Step {
+        private final String processMoniker;
+        private final String step;
+        private final URI invocationURI; // null if not known
+        private final URI compensationURI; // null if not compensated
+
+        private final Metrics.Histogram[] forward = new Metrics.Histogram[Outcome.values().length];
+        private final Metrics.Histogram[] backward = new Metrics.Histogram[Outcome.values().length];
+
+        /**
+         * @param step index of step in process, e.g. "2" or "2.1" for an activity in a parallel stage
+         */
+        /* package private */ Step(String processMoniker, String step, URI invocationURI, URI compensationURI) {
+            this.processMoniker = processMoniker;
+            this.step = step;
+            this.invocationURI = invocationURI;
+            this.compensationURI = compensationURI;
+        }
+
+        /**
+         * For compensations made in the background, where process and step are not known.
+         */
+        /* package private */ static Step unknown(URI compensationURI) {
+            return new Step(UNKNOWN, UNKNOWN, null, compensationURI);
+        }
+
+        /* package private */ String getProcessMoniker() {
+            return processMoniker;
+        }
+
+        /* package private */ String getStep() {
+            return step;
+        }
+
+        /* package private */ void forward(long startNanos, Outcome outcome) {
+            record(forward, "forward", invocationURI, outcome, System.nanoTime() - startNanos);
+        }
+
+        /* package private */ void backward(long startNanos, Outcome outcome) {
+            record(backward, "backward", compensationURI, outcome, System.nanoTime() - startNanos);
+        }
+
+        private void record(Metrics.Histogram[] histograms, String direction, URI uri, Outcome outcome, long nanos) {
+            // Racy, but harmless since the registry hands out the same histogram
+            Metrics.Histogram histogram = histograms[outcome.ordinal()];
+            if (null == histogram) {
+                histogram = Metrics.histogram(Metrics.series(STEP_DURATION,
+                        "process", processMoniker, "step", step, "uri", null != uri ? uri.toString() : UNKNOWN,
+                        "direction", direction, "outcome", outcome.label));
+                histograms[outcome.ordinal()] = histogram;
+            }
+            histogram.record(nanos);
+        }
+    }
+
+    private final String processMoniker;
+    private final Metrics.Histogram[] histograms = new Metrics.Histogram[3];
+
+    /* package private */ ProcessMetrics(String processMoniker) {
+        this.processMoniker = processMoniker;
+    }
+
+    /**
+     * @param status of response to invocation request
+     * @return outcome of process (200 succeeded, 599 compensated, anything else failed)
+     */
+    /* package private */ static String outcomeOf(int status) {
+        switch (status) {
+            case 200:
+                return "succeeded";
+            case 599:
+                return "compensated";
+            default:
+                return "failed";
+        }
+    }
+
+    /**
+     * Records duration of process, given status of response (see {@link #outcomeOf(int)}).
+     */
+    /* package private */ void record(int status, long startNanos) {
+        final int idx = 200 == status ? 0 : 599 == status ? 1 : 2;
+        Metrics.Histogram histogram = histograms[idx];
+        if (null == histogram) {
+            histogram = Metrics.histogram(Metrics.series(PROCESS_DURATION, "process", processMoniker, "outcome", outcomeOf(status)));
+            histograms[idx] = histogram;
+        }
+        histogram.record(System.nanoTime() - startNanos);
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2018 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.gautelis.restitch;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Keeps track of which process (moniker) was invoked for recently created processes, since
+ * the process manager does not. Bounded in size, oldest processes being forgotten first.
+ * <p>
+ * Only processes created by this node (since it was started) are known.
+ */
+/* package private */ class ProcessMonikers {
+    private final Map<String, String> monikers;
+
+    /* package private */ ProcessMonikers(final int maxEntries) {
+        this.monikers = new LinkedHashMap<String, String>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        Metrics.gauge("restitch_process_monikers_size", this::size);
+    }
+
+    /* package private */ void put(String correlationId, String processMoniker) {
+        synchronized (monikers) {
+            monikers.put(correlationId, processMoniker);
+        }
+    }
+
+    /* package private */ Optional<String> get(String correlationId) {
+        synchronized (monikers) {
+            return Optional.ofNullable(monikers.get(correlationId));
+        }
+    }
+
+    private int size() {
+        synchronized (monikers) {
+            return monikers.size();
+        }
+    }
+}
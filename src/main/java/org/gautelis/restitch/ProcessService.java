@@ -17,6 +17,11 @@
  */
 package org.gautelis.restitch;
 
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 import io.swagger.annotations.*;
 import org.apache.commons.io.IOUtils;
 import org.gautelis.muprocessmanager.*;
@@ -31,12 +36,20 @@ import javax.ws.rs.*;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.URI;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
 @Api(value = "process")
 @SwaggerDefinition(
@@ -54,12 +67,80 @@ import java.util.Optional;
 public class ProcessService {
     private static final Logger log = LoggerFactory.getLogger(ProcessService.class);
 
+    private static final String NDJSON = "application/x-ndjson";
+    private static final Gson gson = new GsonBuilder().create();
+
     private final MuProcessManager manager;
-    private final ProcessSpecification specification;
+    private final AtomicReference<ProcessSpecification> specification = new AtomicReference<>();
+    private final ProcessExecutor processExecutor;
+    private final AdmissionControl admissionControl;
+    private final ResultCache resultCache;
+    private final CorrelationIdIndex correlationIdIndex;
+    private final ProcessMonikers monikers;
+    private final ExecutorService batchExecutor;
+    private final int batchConcurrency;
+    private final long batchMaxChars;
+    private final LongAdder duplicateChecks = Metrics.counter("restitch_duplicate_checks_total");
 
-    /* package private */ ProcessService(MuProcessManager manager, Application.Configuration configuration) throws IOException {
+    /* package private */ ProcessService(
+            MuProcessManager manager, MuProcessManagementPolicy policy, ProcessMonikers monikers,
+            Application.Configuration configuration
+    ) throws IOException {
         this.manager = manager;
-        this.specification = ProcessSpecification.getSpecification(configuration);
+        this.monikers = monikers;
+        ProcessSpecification specification = ProcessSpecification.getSpecification(configuration);
+        this.processExecutor = new ProcessExecutor(configuration.asyncProcessThreads(), configuration.asyncProcessQueueSize());
+        this.admissionControl = new AdmissionControl(
+                specification, configuration.maxRunningProcesses(),
+                configuration.admissionWaitMillis(), configuration.maxQueueWaitMillis()
+        );
+        apply(specification);
+        if (configuration.watchProcessSpecification()) {
+            new SpecificationWatcher(
+                    configuration.processSpecification(), () -> ProcessSpecification.getSpecification(configuration), this::apply
+            ).start();
+        }
+        this.batchConcurrency = configuration.batchConcurrency();
+        if (batchConcurrency < 1) {
+            throw new IllegalArgumentException("Illegal batch concurrency: " + batchConcurrency);
+        }
+        this.batchExecutor = Workers.newProcessExecutor(batchConcurrency);
+        if (configuration.batchMaxMegabytes() < 1) {
+            throw new IllegalArgumentException("Illegal max batch size: " + configuration.batchMaxMegabytes() + " MB");
+        }
+        this.batchMaxChars = configuration.batchMaxMegabytes() * 1024L * 1024L;
+        this.resultCache = new ResultCache(configuration.resultCacheSize(), policy.minutesToTrackProcess());
+        this.correlationIdIndex = new CorrelationIdIndex(
+                configuration.localDuplicateIndex(), configuration.localDuplicateIndexCapacity(), policy.minutesToTrackProcess()
+        );
+    }
+
+    /*
+     * Makes specification the current specification, configuring backends accordingly.
+     * Processes already running keep the execution plan they started with, including the
+     * retry, hedging and caching policies of its steps, whereas circuit breakers
+     * and connection limits are per backend and apply to running processes at once.
+     */
+    private synchronized void apply(ProcessSpecification specification) {
+        ProcessSpecification current = this.specification.get();
+        try {
+            configure(specification);
+        } catch (RuntimeException re) {
+            if (null != current) {
+                // Don't leave backends configured partly according to the rejected specification
+                configure(current);
+            }
+            throw re;
+        }
+        this.specification.set(specification);
+    }
+
+    private void configure(ProcessSpecification specification) {
+        BackendClient.configure(specification);
+        CircuitBreaker.configure(specification);
+        RetryPolicy.configure(specification);
+        Hedging.configure(specification);
+        admissionControl.configure(specification);
     }
 
     /**
@@ -70,6 +151,15 @@ public class ProcessService {
      * -d '{"pizzaId":101,"ingredients":["flour","eggs","milk","salt","small nasty chickins"],"pizzaName":"Chichen (P)itza"}' \
      * http://localhost:8080/process/demo/775113c6-8f7a-4f0d-b5fd-9139727ef224
      * <p>
+     * The process is run asynchronously if requested (either through the 'async' query parameter
+     * or by means of a 'Prefer: respond-async' header) or if the process is specified as being
+     * asynchronous. The request is then answered with 202 Accepted as soon as the process is
+     * created, and the process result is later retrieved from the location indicated.
+     * <p>
+     * curl -v -X POST -H "Content-Type:application/json" -H "Prefer: respond-async" \
+     * -d '{"pizzaId":101,"ingredients":["flour","eggs","milk","salt","small nasty chickins"],"pizzaName":"Chichen (P)itza"}' \
+     * http://localhost:8080/process/demo/775113c6-8f7a-4f0d-b5fd-9139727ef224
+     * <p>
      */
     @POST
     @Timed
@@ -81,17 +171,21 @@ public class ProcessService {
     @Produces({MediaType.APPLICATION_JSON, MediaType.TEXT_PLAIN})
     @ApiResponses(value = {
             @ApiResponse(code = 200 /* OK */, message = "Process succeeded"),
+            @ApiResponse(code = 202 /* Accepted */, message = "Process accepted, and will be run asynchronously"),
             @ApiResponse(code = 412 /* Precondition Failed */, message = "Unknown process or process invocation re-issued"),
             @ApiResponse(code = 500 /* Internal Server Error */, message = "Failed to process request"),
+            @ApiResponse(code = 503 /* Service Unavailable */, message = "Cannot accept process right now, or backend unavailable"),
             @ApiResponse(code = 599 /* Process failure */, message = "Failed to process request")})
     public Response invokeProcess(
             @ApiParam(value = "ProcessMoniker", required = true) @PathParam("processMoniker") String processMoniker,
             @ApiParam(value = "CorrelationId", required = true) @PathParam("correlationId") String correlationId,
+            @ApiParam(value = "Async", required = false) @QueryParam("async") @DefaultValue("false") boolean async,
             @ApiParam(value = "ActionParameters", required = true) @Context Request parameters
     ) {
-        String payload;
+        Payload payload;
         try (InputStream is = parameters.getMessageContentStream()) {
-            payload = IOUtils.toString(is, StandardCharsets.UTF_8.name());
+            // Held as bytes, and posted as is to every activity in the process
+            payload = Payload.of(IOUtils.toByteArray(is));
 
         } catch (IOException ioe) {
             String info = "Could not read parameters: " + ioe.getMessage();
@@ -99,49 +193,416 @@ public class ProcessService {
             return Response.status(500).type(MediaType.TEXT_PLAIN_TYPE).entity(info).build();
         }
 
-        Optional<List<ProcessSpecification.Specification>> _specificationList = specification.getSpecification(processMoniker);
-        if (!_specificationList.isPresent()) {
+        Optional<ExecutionPlan> _plan = specification.get().getPlan(processMoniker);
+        if (!_plan.isPresent()) {
             String info = "Unknown process: " + processMoniker;
             log.info(info);
             return Response.status(412).type(MediaType.TEXT_PLAIN_TYPE).entity(info).build();
         }
 
-        List<ProcessSpecification.Specification> specificationList = _specificationList.get();
-        if (specificationList.isEmpty()) {
+        final ExecutionPlan plan = _plan.get();
+        if (plan.isEmpty()) {
             String info = "Process \"" + processMoniker + "\" has no activities?";
             log.info(info);
             return Response.status(412).type(MediaType.TEXT_PLAIN_TYPE).entity(info).build();
         }
 
+        // Shed load before anything is persisted
+        Optional<Response> refusal = admit(plan);
+        if (refusal.isPresent()) {
+            return refusal.get();
+        }
+
+        boolean runAsync = async || prefersAsync(parameters) || plan.isAsynchronous();
+        if (!runAsync) {
+            return invokeSynchronously(plan, correlationId, payload);
+        }
+
+        Optional<AdmissionControl.Rejection> rejection = admissionControl.checkQueueWait(processExecutor);
+        if (rejection.isPresent()) {
+            return rejected(rejection.get());
+        }
+        if (!processExecutor.reserve()) {
+            String info = "Cannot accept asynchronous process right now, try again later";
+            log.debug(info);
+            return Response.status(503).header("Retry-After", 1).type(MediaType.TEXT_PLAIN_TYPE).entity(info).build();
+        }
+
+        boolean reserved = true;
         MuProcess process = null;
         try {
-            // If process is already handled, flag this as an error
-            Optional<MuProcessState> status = manager.getProcessState(correlationId);
-            if (status.isPresent()) {
-                String info = String.format("Business request (referred to by correlation ID \"%s\") was re-issued", correlationId);
-                return Response.status(412).type(MediaType.TEXT_PLAIN_TYPE).entity(info).build();
+            // Quota is taken only once there is room to run the process
+            rejection = admissionControl.checkQuota(processMoniker);
+            if (rejection.isPresent()) {
+                return rejected(rejection.get());
             }
 
+            process = create(processMoniker, correlationId);
+            if (null == process) {
+                admissionControl.returnQuota(processMoniker);
+                return reissued(correlationId);
+            }
 
-            try {
-                process = manager.newProcess(correlationId);
+            final MuProcess _process = process;
+            processExecutor.execute(() -> {
+                Response response = run(_process, correlationId, payload, plan);
+                log.trace("Asynchronous process (correlation ID \"{}\") ended with status {}", correlationId, response.getStatus());
+            });
+            reserved = false; // handed over
 
-                MuForeignActivityParameters activityParameters = new MuForeignActivityParameters(payload);
+            return Response.status(202)
+                    .header("Location", "/process/" + correlationId)
+                    .type(MediaType.TEXT_PLAIN_TYPE)
+                    .entity("Process accepted")
+                    .build();
 
-                for (ProcessSpecification.Specification specification : specificationList) {
-                    Optional<URI> compensationURI = specification.getCompensationURI();
+        } catch (Throwable t) {
+            // Other reasons for failure not necessarily related to the activity
+            if (null != process) {
+                process.failed();
+            } else {
+                // No process was created
+                admissionControl.returnQuota(processMoniker);
+            }
 
-                    if (compensationURI.isPresent()) {
-                        MuOrchestrationParameters orchestrationParameters = new MuOrchestrationParameters();
-                        orchestrationParameters.put("compensation-uri", compensationURI.get().toString());
-                        process.execute(new CompensatedActivity(correlationId, specification.getInvocationURI()), activityParameters, orchestrationParameters);
-                    } else {
-                        process.execute(new UncompensatedActivity(correlationId, specification.getInvocationURI()), activityParameters);
+            String info = String.format("Process failure: %s", t.getMessage());
+            log.warn(info, t);
+
+            return Response.status(500).type(MediaType.TEXT_PLAIN_TYPE).entity(info).build();
+
+        } finally {
+            if (reserved) {
+                processExecutor.release();
+            }
+        }
+    }
+
+    /**
+     * Invoke a batch of processes (of the same kind), each identified by a correlation ID and
+     * having parameters of its own, provided as one JSON record per line:
+     * <p>
+     * {"correlationId":"775113c6-8f7a-4f0d-b5fd-9139727ef224","payload":{"pizzaId":101}}
+     * <p>
+     * curl -v -X POST -H "Content-Type:application/x-ndjson" --data-binary @batch.ndjson \
+     * http://localhost:8080/process/demo?concurrency=16
+     * <p>
+     * Processes are run concurrently, a bounded number at a time, and the outcome of each
+     * process is streamed back as it completes (thus not in request order), as one JSON
+     * object per line: correlation ID, status (as if invoked individually) and either
+     * result or an explanatory message.
+     */
+    @POST
+    @Timed
+    @Path("/{processMoniker}")
+    @Consumes({NDJSON, MediaType.APPLICATION_JSON})
+    @ApiOperation(
+            value = "Invoke batch of processes with provided parameters",
+            notes = "Outcomes are streamed back as processes complete, one JSON object per line")
+    @Produces({NDJSON, MediaType.TEXT_PLAIN})
+    @ApiResponses(value = {
+            @ApiResponse(code = 200 /* OK */, message = "Outcome per process"),
+            @ApiResponse(code = 400 /* Bad Request */, message = "Invalid concurrency"),
+            @ApiResponse(code = 412 /* Precondition Failed */, message = "Unknown process"),
+            @ApiResponse(code = 413 /* Payload Too Large */, message = "Too large batch"),
+            @ApiResponse(code = 500 /* Internal Server Error */, message = "Failed to process request")})
+    public Response invokeProcesses(
+            @ApiParam(value = "ProcessMoniker", required = true) @PathParam("processMoniker") String processMoniker,
+            @ApiParam(value = "Concurrency", required = false) @QueryParam("concurrency") @DefaultValue("0") int concurrency,
+            @ApiParam(value = "Records", required = true) @Context Request request
+    ) {
+        Optional<ExecutionPlan> _plan = specification.get().getPlan(processMoniker);
+        if (!_plan.isPresent() || _plan.get().isEmpty()) {
+            String info = "Unknown process (or process has no activities): " + processMoniker;
+            log.info(info);
+            return Response.status(412).type(MediaType.TEXT_PLAIN_TYPE).entity(info).build();
+        }
+        final ExecutionPlan plan = _plan.get();
+
+        if (concurrency < 0 || concurrency > batchConcurrency) {
+            String info = "Concurrency must be between 1 and " + batchConcurrency + " (or 0 for default)";
+            log.debug(info);
+            return Response.status(400).type(MediaType.TEXT_PLAIN_TYPE).entity(info).build();
+        }
+        final int _concurrency = 0 == concurrency ? batchConcurrency : concurrency;
+
+        /*
+         * Records (and payloads) are read before processes are started, since the container does
+         * not guarantee to support reading the request body from within the response stream.
+         * The size of a batch is therefore bounded.
+         */
+        final Deque<BatchRecord> records = new ArrayDeque<>();
+        long chars = 0L;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(request.getMessageContentStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while (null != (line = reader.readLine())) {
+                chars += line.length() + 1;
+                if (chars > batchMaxChars) {
+                    String info = "Batch exceeds max size of " + (batchMaxChars / (1024L * 1024L)) + " MB, split into smaller batches";
+                    log.info(info);
+                    return Response.status(413).type(MediaType.TEXT_PLAIN_TYPE).entity(info).build();
+                }
+                if (!line.trim().isEmpty()) {
+                    records.add(BatchRecord.parse(line));
+                }
+            }
+        } catch (IOException ioe) {
+            String info = "Could not read records: " + ioe.getMessage();
+            log.info(info);
+            return Response.status(500).type(MediaType.TEXT_PLAIN_TYPE).entity(info).build();
+        }
+
+        StreamingOutput outcomes = os -> {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8));
+            BlockingQueue<String> completed = new LinkedBlockingQueue<>();
+            Semaphore permits = new Semaphore(_concurrency);
+
+            int pending = 0;
+            try {
+                // Records are let go of as processes are started
+                BatchRecord _record;
+                while (null != (_record = records.poll())) {
+                    final BatchRecord record = _record;
+                    if (null != record.error) {
+                        writer.write(outcome(record.correlationId, 400, record.error));
+                        writer.write('\n');
+                        continue;
+                    }
+
+                    // Write outcomes while waiting for a free slot
+                    while (!permits.tryAcquire(10, TimeUnit.MILLISECONDS)) {
+                        pending -= drain(completed, writer);
                     }
+                    pending++;
+                    batchExecutor.execute(() -> {
+                        try {
+                            Response response = admit(plan).orElseGet(
+                                    () -> invokeSynchronously(plan, record.correlationId, record.payload)
+                            );
+                            completed.add(outcome(record.correlationId, response.getStatus(), response.getEntity()));
+                        } catch (Throwable t) {
+                            completed.add(outcome(record.correlationId, 500, t.getMessage()));
+                        } finally {
+                            permits.release();
+                        }
+                    });
+                    pending -= drain(completed, writer);
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for processes");
+            }
+
+            try {
+                while (pending > 0) {
+                    writer.write(completed.take());
+                    writer.write('\n');
+                    pending--;
+                    pending -= drain(completed, writer);
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for processes");
+            }
+            writer.flush();
+        };
+        return Response.ok(outcomes, NDJSON).build();
+    }
+
+    /*
+     * Writes (and flushes) outcomes that are ready.
+     * @return number of outcomes written
+     */
+    private static int drain(BlockingQueue<String> completed, Writer writer) throws IOException {
+        int count = 0;
+        String outcome;
+        while (null != (outcome = completed.poll())) {
+            writer.write(outcome);
+            writer.write('\n');
+            count++;
+        }
+        if (count > 0) {
+            writer.flush();
+        }
+        return count;
+    }
+
+    private static String outcome(String correlationId, int status, Object entity) {
+        StringBuilder buf = new StringBuilder();
+        buf.append("{\"correlationId\":").append(gson.toJson(correlationId));
+        buf.append(",\"status\":").append(status);
+        if (200 == status && null != entity) {
+            // Result is JSON already
+            buf.append(",\"result\":").append(entity);
+        } else if (null != entity) {
+            buf.append(",\"message\":").append(gson.toJson(entity.toString()));
+        }
+        return buf.append('}').toString();
+    }
+
+    /**
+     * Checks whether an invocation of process is admitted, considering availability of
+     * backends. Quotas are checked later, once there is room to run the process.
+     * @return response if invocation is refused
+     */
+    private Optional<Response> admit(ExecutionPlan plan) {
+        // Don't start a process that is bound to fail
+        Optional<CircuitBreaker> openCircuit = CircuitBreaker.anyOpen(plan.getInvocationURIs());
+        if (openCircuit.isPresent()) {
+            return Optional.of(circuitOpen(openCircuit.get()));
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Creates and runs a process synchronously, if there is room for it.
+     * @return response to invocation request
+     */
+    private Response invokeSynchronously(ExecutionPlan plan, String correlationId, Payload payload) {
+        Optional<AdmissionControl.Rejection> rejection = admissionControl.enter();
+        if (rejection.isPresent()) {
+            return rejected(rejection.get());
+        }
+
+        try {
+            // Quota is taken only once there is room to run the process
+            rejection = admissionControl.checkQuota(plan.getProcessMoniker());
+            if (rejection.isPresent()) {
+                return rejected(rejection.get());
+            }
+
+            MuProcess process;
+            try {
+                process = create(plan.getProcessMoniker(), correlationId);
+                if (null == process) {
+                    admissionControl.returnQuota(plan.getProcessMoniker());
+                    return reissued(correlationId);
+                }
+            } catch (Throwable t) {
+                admissionControl.returnQuota(plan.getProcessMoniker());
+                String info = String.format("Process failure: %s", t.getMessage());
+                log.warn(info, t);
+
+                return Response.status(500).type(MediaType.TEXT_PLAIN_TYPE).entity(info).build();
+            }
+            return run(process, correlationId, payload, plan);
+
+        } finally {
+            admissionControl.exit();
+        }
+    }
+
+    /*
+     * One line in a batch invocation
+     */
+    private static class BatchRecord {
+        private final String correlationId;
+        private final Payload payload;
+        private final String error;
+
+        private BatchRecord(String correlationId, Payload payload, String error) {
+            this.correlationId = correlationId;
+            this.payload = payload;
+            this.error = error;
+        }
+
+        private static BatchRecord parse(String line) {
+            try {
+                JsonObject record = gson.fromJson(line, JsonObject.class);
+                if (null == record) {
+                    // e.g. the line 'null'
+                    return new BatchRecord(null, null, "Record is not a JSON object: " + line);
+                }
+                JsonElement correlationId = record.get("correlationId");
+                if (null == correlationId || !correlationId.isJsonPrimitive() || correlationId.getAsString().isEmpty()) {
+                    return new BatchRecord(null, null, "Record has no correlation ID: " + line);
                 }
-                process.finished();
+                JsonElement payload = record.get("payload");
+                if (null == payload || payload.isJsonNull()) {
+                    return new BatchRecord(correlationId.getAsString(), null, "Record has no payload");
+                }
+                return new BatchRecord(correlationId.getAsString(), Payload.of(payload.toString()), null);
 
-                return Response.ok(process.getResult().toJson(), MediaType.APPLICATION_JSON_TYPE).build();
+            } catch (JsonParseException | IllegalStateException e) {
+                return new BatchRecord(null, null, "Record is not a JSON object: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Creates process, unless the business request was re-issued (or is being issued right now).
+     * The database is only asked if the correlation ID may have been seen before.
+     * @return process, or null if business request was re-issued
+     */
+    private MuProcess create(String processMoniker, String correlationId) throws MuProcessException {
+        if (!correlationIdIndex.claim(correlationId)) {
+            return null;
+        }
+
+        boolean created = false;
+        try {
+            if (correlationIdIndex.mightContain(correlationId) && isKnown(correlationId)) {
+                return null;
+            }
+
+            try {
+                Object event = FlightRecording.beginProcessManagerCall();
+                MuProcess process;
+                try {
+                    process = manager.newProcess(correlationId);
+                } finally {
+                    FlightRecording.endProcessManagerCall(event, "newProcess", correlationId);
+                }
+                monikers.put(correlationId, processMoniker);
+                created = true;
+                return process;
+
+            } catch (MuProcessException mpe) {
+                // Creating the process is the final arbiter, e.g. if created by another node
+                if (isKnown(correlationId)) {
+                    return null;
+                }
+                throw mpe;
+            }
+        } finally {
+            correlationIdIndex.release(correlationId, created);
+        }
+    }
+
+    /**
+     * Runs all activities in a (newly created) process, recording its duration and timeline.
+     * @return response to invocation request
+     */
+    private Response run(MuProcess process, String correlationId, Payload payload, ExecutionPlan plan) {
+        final long start = System.nanoTime();
+        final Object event = FlightRecording.beginProcess();
+        ProcessTimelines.Timeline timeline = ProcessTimelines.start(correlationId, plan.getProcessMoniker());
+        Response response = runActivities(process, correlationId, payload, plan);
+        plan.getMetrics().record(response.getStatus(), start);
+        if (null != timeline) {
+            timeline.end(response.getStatus());
+        }
+        FlightRecording.endProcess(event, plan.getProcessMoniker(), correlationId, response.getStatus());
+        return response;
+    }
+
+    private Response runActivities(MuProcess process, String correlationId, Payload payload, ExecutionPlan plan) {
+        try {
+            try {
+                MuForeignActivityParameters activityParameters = new MuForeignActivityParameters(payload.json());
+
+                plan.execute(process, correlationId, payload, activityParameters);
+
+                Object event = FlightRecording.beginProcessManagerCall();
+                try {
+                    process.finished();
+                } finally {
+                    FlightRecording.endProcessManagerCall(event, "finished", correlationId);
+                }
+
+                String result = process.getResult().toJson();
+                resultCache.put(correlationId, result);
+
+                return Response.ok(result, MediaType.APPLICATION_JSON_TYPE).build();
 
             } catch (MuProcessForwardBehaviourException mpfae) {
                 // Forward activity failed, but compensations were successful
@@ -156,9 +617,13 @@ public class ProcessService {
                 return Response.status(599).type(MediaType.TEXT_PLAIN_TYPE).entity(info).build();
             }
         } catch (Throwable t) {
-            // Other reasons for failure not necessarily related to the activity
-            if (null != process) {
+            // Other reasons for failure not necessarily related to the activity, or
+            // a parallel stage that failed to compensate its own activities
+            Object event = FlightRecording.beginProcessManagerCall();
+            try {
                 process.failed();
+            } finally {
+                FlightRecording.endProcessManagerCall(event, "failed", correlationId);
             }
 
             String info = String.format("Process failure: %s", t.getMessage());
@@ -168,11 +633,63 @@ public class ProcessService {
         }
     }
 
+    private boolean isKnown(String correlationId) throws MuProcessException {
+        duplicateChecks.increment();
+        Object event = FlightRecording.beginProcessManagerCall();
+        try {
+            return manager.getProcessState(correlationId).isPresent();
+        } finally {
+            FlightRecording.endProcessManagerCall(event, "getProcessState", correlationId);
+        }
+    }
+
+    private static Response rejected(AdmissionControl.Rejection rejection) {
+        log.debug(rejection.message);
+        return Response.status(503)
+                .header("Retry-After", rejection.retryAfterSeconds)
+                .type(MediaType.TEXT_PLAIN_TYPE)
+                .entity(rejection.message)
+                .build();
+    }
+
+    private static Response circuitOpen(CircuitBreaker breaker) {
+        String info = String.format("Backend %s is currently unavailable, try again later", breaker.getURI());
+        log.debug(info);
+        return Response.status(503)
+                .header("Retry-After", breaker.secondsUntilProbe())
+                .type(MediaType.TEXT_PLAIN_TYPE)
+                .entity(info)
+                .build();
+    }
+
+    private static Response reissued(String correlationId) {
+        String info = String.format("Business request (referred to by correlation ID \"%s\") was re-issued", correlationId);
+        return Response.status(412).type(MediaType.TEXT_PLAIN_TYPE).entity(info).build();
+    }
+
+    /*
+     * RFC 7240, i.e. 'Prefer: respond-async'
+     */
+    private static boolean prefersAsync(Request request) {
+        String prefer = request.getHeader("Prefer");
+        if (null == prefer) {
+            return false;
+        }
+        for (String preference : prefer.split(",")) {
+            if ("respond-async".equalsIgnoreCase(preference.trim())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Retrieve process result(s) for a given business request, identified by correlation ID.
      * <p>
      * curl http://localhost:8080/process/775113c6-8f7a-4f0d-b5fd-9139727ef224
      * <p>
+     * Results of recently finished processes are served from memory.
+     * <p>
      *
      * @param correlationId ID identifying a unique process handling a specific business request
      * @return Response
@@ -192,9 +709,16 @@ public class ProcessService {
             @ApiParam(value = "CorrelationId", required = true) @PathParam("correlationId") String correlationId
     ) {
         try {
-            Optional<MuProcessResult> result = manager.getProcessResult(correlationId);
+            Optional<String> result = resultCache.get(correlationId, id -> {
+                Object event = FlightRecording.beginProcessManagerCall();
+                try {
+                    return manager.getProcessResult(id).map(MuProcessResult::toJson);
+                } finally {
+                    FlightRecording.endProcessManagerCall(event, "getProcessResult", id);
+                }
+            });
             if (result.isPresent()) {
-                return Response.ok(result.get().toJson(), MediaType.APPLICATION_JSON_TYPE).build();
+                return Response.ok(result.get(), MediaType.APPLICATION_JSON_TYPE).build();
             } else {
                 return Response.ok().status(204).build();
             }
@@ -260,6 +784,7 @@ public class ProcessService {
             }
 
             Optional<Boolean> success = manager.resetProcess(correlationId);
+            resultCache.invalidate(correlationId);
             if (success.isPresent() && success.get()) {
                 return Response.ok("Process reset", MediaType.TEXT_PLAIN_TYPE).build();
             }
@@ -303,7 +828,7 @@ public class ProcessService {
     @ApiResponses(value = {
             @ApiResponse(code = 200 /* OK */, message = "Valid request")})
     public ProcessSpecification getProcessSpecifications() {
-        return specification;
+        return specification.get();
     }
 
     /**
@@ -328,7 +853,7 @@ public class ProcessService {
     public Response getProcessSpecification(
             @ApiParam(value = "ProcessMoniker", required = true) @PathParam("processMoniker") String processMoniker
     ) {
-        Optional<List<ProcessSpecification.Specification>> specificationList = specification.getSpecification(processMoniker);
+        Optional<List<ProcessSpecification.Specification>> specificationList = specification.get().getSpecification(processMoniker);
         if (!specificationList.isPresent()) {
             String info = "Unknown process: " + processMoniker;
             return Response.status(412).type(MediaType.TEXT_PLAIN_TYPE).entity(info).build();
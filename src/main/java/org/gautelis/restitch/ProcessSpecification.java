@@ -23,10 +23,18 @@ import com.google.gson.GsonBuilder;
 import java.io.*;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.function.Consumer;
 
 public class ProcessSpecification {
     private static final Gson gson = new GsonBuilder().create();
@@ -35,6 +43,32 @@ public class ProcessSpecification {
         URI invocationURI;
         URI compensationURI = null;
 
+        // Alternatively, a stage of activities that are run concurrently
+        List<Specification> parallel = null;
+
+        // Optional connection limits towards the backend(s) of this step
+        Integer maxConnections = null;
+        Integer maxConnectionsPerRoute = null;
+
+        // Optional transport, "blocking" (default), "async" or "http2"
+        String transport = null;
+
+        // Optional circuit breaker thresholds for the backend(s) of this step
+        Integer circuitBreakerFailures = null;
+        Integer circuitBreakerOpenSeconds = null;
+
+        // Optional retry policy for calls to the backend(s) of this step
+        Retry retry = null;
+
+        // Whether invocation may be hedged, i.e. repeated (to an alternate URI) if slow
+        Boolean idempotent = null;
+        URI hedgeURI = null;
+        Double hedgePercentile = null;
+
+        // Whether result depends only on payload, and may be cached for a while
+        Boolean cacheable = null;
+        Integer cacheTtlSeconds = null;
+
         public URI getInvocationURI() {
             return invocationURI;
         }
@@ -42,9 +76,138 @@ public class ProcessSpecification {
         public Optional<URI> getCompensationURI() {
             return Optional.ofNullable(compensationURI);
         }
+
+        public boolean isParallelStage() {
+            return null != parallel;
+        }
+
+        public List<Specification> getParallel() {
+            return null != parallel ? parallel : Collections.emptyList();
+        }
+
+        public Transport getTransport() {
+            return Transport.of(transport);
+        }
+
+        public Optional<Integer> getMaxConnections() {
+            return Optional.ofNullable(maxConnections);
+        }
+
+        public Optional<Integer> getMaxConnectionsPerRoute() {
+            return Optional.ofNullable(maxConnectionsPerRoute);
+        }
+
+        public Optional<Integer> getCircuitBreakerFailures() {
+            return Optional.ofNullable(circuitBreakerFailures);
+        }
+
+        public Optional<Integer> getCircuitBreakerOpenSeconds() {
+            return Optional.ofNullable(circuitBreakerOpenSeconds);
+        }
+
+        public Optional<Retry> getRetry() {
+            return Optional.ofNullable(retry);
+        }
+
+        public boolean isIdempotent() {
+            return null != idempotent && idempotent;
+        }
+
+        public Optional<URI> getHedgeURI() {
+            return Optional.ofNullable(hedgeURI);
+        }
+
+        public double getHedgePercentile() {
+            return null != hedgePercentile ? hedgePercentile : 95.0;
+        }
+
+        public boolean isCacheable() {
+            return null != cacheable && cacheable;
+        }
+
+        public int getCacheTtlSeconds() {
+            return null != cacheTtlSeconds ? cacheTtlSeconds : 60;
+        }
+
+        /* package private */ Collection<URI> getURIs() {
+            Collection<URI> uris = new ArrayList<>(2);
+            uris.add(invocationURI);
+            if (null != compensationURI) {
+                uris.add(compensationURI);
+            }
+            return uris;
+        }
+    }
+
+    /**
+     * When, and how often, a failed call to a backend is re-tried, backing off exponentially
+     * (with jitter) between attempts.
+     */
+    public static class Retry {
+        private static final List<Integer> DEFAULT_STATUSES = Arrays.asList(
+                408 /* Request Timeout */, 429 /* Too Many Requests */,
+                502 /* Bad Gateway */, 503 /* Service Unavailable */, 504 /* Gateway Timeout */
+        );
+        private static final List<String> DEFAULT_EXCEPTIONS = Arrays.asList(
+                "java.net.SocketException", // connection refused or reset
+                "org.apache.http.NoHttpResponseException",
+                "org.apache.http.conn.ConnectTimeoutException",
+                "org.apache.hc.core5.http.ConnectionClosedException"
+        );
+
+        Integer maxAttempts = null;
+        Integer backoffMillis = null;
+        Integer maxBackoffMillis = null;
+        List<Integer> statuses = null;
+        List</* class name */ String> exceptions = null;
+
+        public int getMaxAttempts() {
+            return null != maxAttempts ? maxAttempts : 3;
+        }
+
+        public int getBackoffMillis() {
+            return null != backoffMillis ? backoffMillis : 50;
+        }
+
+        public int getMaxBackoffMillis() {
+            return null != maxBackoffMillis ? maxBackoffMillis : 1000;
+        }
+
+        public List<Integer> getStatuses() {
+            return null != statuses ? statuses : DEFAULT_STATUSES;
+        }
+
+        public List<String> getExceptions() {
+            return null != exceptions ? exceptions : DEFAULT_EXCEPTIONS;
+        }
+    }
+
+    /**
+     * Rate (processes per second) at which a process may be invoked, allowing for bursts.
+     */
+    public static class Quota {
+        double rate;
+        Integer burst = null;
+
+        public double getRate() {
+            return rate;
+        }
+
+        public int getBurst() {
+            return null != burst ? burst : (int) Math.max(1, Math.ceil(rate));
+        }
     }
 
-    private HashMap</* process moniker */ String, List<Specification>> processes = new HashMap<>();
+    private Map</* process moniker */ String, List<Specification>> processes = new HashMap<>();
+
+    // Processes that are always run asynchronously
+    private Set</* process moniker */ String> asynchronous = null;
+
+    // Optional invocation quotas, per process
+    private Map</* process moniker */ String, Quota> quotas = null;
+
+    // Processes, as compiled when loaded
+    private transient Map</* process moniker */ String, ExecutionPlan> plans = Collections.emptyMap();
 
 
     /* package private */ ProcessSpecification() {}
@@ -73,14 +236,109 @@ public class ProcessSpecification {
             specification.processes.forEach((p, sl) -> {
                 // Validate process 'p'
                 sl.forEach(s -> {
-                    if (null == s.getInvocationURI()) {
-                        String info = "You must provide at least an invocation URI for all process steps: ";
-                        info += "Check configuration of process " + p;
+                    if (s.isParallelStage()) {
+                        if (null != s.getInvocationURI() || s.getParallel().isEmpty()) {
+                            String info = "A parallel stage must list its activities, and only those: ";
+                            info += "Check configuration of process " + p;
+                            throw new IllegalArgumentException(info);
+                        }
+                        s.getParallel().forEach(ps -> {
+                            if (ps.isParallelStage()) {
+                                String info = "Parallel stages may not be nested: ";
+                                info += "Check configuration of process " + p;
+                                throw new IllegalArgumentException(info);
+                            }
+                            validate(p, ps);
+                        });
+                    } else {
+                        validate(p, s);
+                    }
+                });
+            });
+            if (null != specification.quotas) {
+                specification.quotas.forEach((p, q) -> {
+                    if (null == q || q.rate <= 0.0 || (null != q.burst && q.burst < 1)) {
+                        String info = "Quota rate and burst must be positive: ";
+                        info += "Check quota of process " + p;
                         throw new IllegalArgumentException(info);
                     }
                 });
+            }
+            return specification.freeze();
+        }
+    }
+
+    /*
+     * Makes (the structure of) a loaded specification immutable, so that it may be shared
+     * as a snapshot by processes running while the specification is reloaded, and compiles
+     * the execution plans of all processes.
+     */
+    private ProcessSpecification freeze() {
+        Map<String, List<Specification>> _processes = new HashMap<>();
+        processes.forEach((p, sl) -> {
+            sl.forEach(s -> {
+                if (s.isParallelStage()) {
+                    s.parallel = Collections.unmodifiableList(new ArrayList<>(s.parallel));
+                }
             });
-            return specification;
+            _processes.put(p, Collections.unmodifiableList(new ArrayList<>(sl)));
+        });
+        processes = Collections.unmodifiableMap(_processes);
+        if (null != asynchronous) {
+            asynchronous = Collections.unmodifiableSet(new HashSet<>(asynchronous));
+        }
+        if (null != quotas) {
+            quotas = Collections.unmodifiableMap(new HashMap<>(quotas));
+        }
+
+        Map<String, ExecutionPlan> _plans = new HashMap<>();
+        processes.forEach((p, sl) -> _plans.put(p, ExecutionPlan.compile(p, sl, isAsynchronous(p))));
+        plans = Collections.unmodifiableMap(_plans);
+        return this;
+    }
+
+    private static void validate(String process, Specification s) {
+        if (null == s.getInvocationURI()) {
+            String info = "You must provide at least an invocation URI for all process steps: ";
+            info += "Check configuration of process " + process;
+            throw new IllegalArgumentException(info);
+        }
+        if ((null != s.maxConnections && s.maxConnections < 1)
+                || (null != s.maxConnectionsPerRoute && s.maxConnectionsPerRoute < 1)) {
+            String info = "Connection limits must be positive: ";
+            info += "Check configuration of process " + process;
+            throw new IllegalArgumentException(info);
+        }
+        if ((null != s.circuitBreakerFailures && s.circuitBreakerFailures < 0)
+                || (null != s.circuitBreakerOpenSeconds && s.circuitBreakerOpenSeconds < 1)) {
+            String info = "Circuit breaker failures must not be negative, and open seconds must be positive: ";
+            info += "Check configuration of process " + process;
+            throw new IllegalArgumentException(info);
+        }
+        if (null != s.retry) {
+            Retry r = s.retry;
+            if (r.getMaxAttempts() < 1 || r.getBackoffMillis() < 0 || r.getMaxBackoffMillis() < r.getBackoffMillis()) {
+                String info = "Retry attempts must be positive, and backoff must not be negative nor exceed max backoff: ";
+                info += "Check configuration of process " + process;
+                throw new IllegalArgumentException(info);
+            }
+        }
+        if (s.getHedgePercentile() <= 0.0 || s.getHedgePercentile() >= 100.0 || (null != s.hedgeURI && !s.isIdempotent())) {
+            String info = "Hedge percentile must be between 0 and 100, and only idempotent steps may be hedged: ";
+            info += "Check configuration of process " + process;
+            throw new IllegalArgumentException(info);
+        }
+        if (s.isCacheable() && (null != s.compensationURI || s.getCacheTtlSeconds() < 1)) {
+            String info = "Cacheable steps may not be compensated, and must have a positive time to live: ";
+            info += "Check configuration of process " + process;
+            throw new IllegalArgumentException(info);
+        }
+        try {
+            s.getTransport();
+        } catch (IllegalArgumentException iae) {
+            String info = iae.getMessage() + ": ";
+            info += "Check configuration of process " + process;
+            throw new IllegalArgumentException(info);
         }
     }
 
@@ -88,6 +346,28 @@ public class ProcessSpecification {
         return Optional.ofNullable(processes.get(processMoniker));
     }
 
+    /* package private */ Optional<ExecutionPlan> getPlan(String processMoniker) {
+        return Optional.ofNullable(plans.get(processMoniker));
+    }
+
+    public boolean isAsynchronous(String processMoniker) {
+        return null != asynchronous && asynchronous.contains(processMoniker);
+    }
+
+    public Optional<Quota> getQuota(String processMoniker) {
+        return null != quotas ? Optional.ofNullable(quotas.get(processMoniker)) : Optional.empty();
+    }
+
+    /* package private */ void forEachSpecification(Consumer<Specification> consumer) {
+        processes.values().forEach(sl -> sl.forEach(s -> {
+            if (s.isParallelStage()) {
+                s.getParallel().forEach(consumer);
+            } else {
+                consumer.accept(s);
+            }
+        }));
+    }
+
     /**
      * Used to get skeleton JSON for process specification (from the horse's mouth, so to say)
      * during development. Not really meant for production use (?) -- anyhow the explicit logging
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2018 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.gautelis.restitch;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Timelines of recently run processes, i.e. when each step was invoked (or compensated),
+ * how long it took and what every attempt at calling the backend resulted in, so that it
+ * is possible to see where the time went without turning on trace logging.
+ * <p>
+ * Timelines are kept in a ring buffer of fixed size, the oldest timeline being replaced
+ * by the newest. Only processes run by this node (since it was started) are known, and
+ * compensations made in the background (i.e. after a restart) are not recorded.
+ */
+/* package private */ final class ProcessTimelines {
+
+    // Bounds of a single timeline, so that a misbehaving process does not use up memory
+    private static final int MAX_SPANS = 64;
+    private static final int MAX_ATTEMPTS = 8;
+
+    private static volatile AtomicReferenceArray<Timeline> ring = new AtomicReferenceArray<>(0);
+    private static final AtomicLong next = new AtomicLong();
+    private static final Map</* correlation ID */ String, Timeline> index = new ConcurrentHashMap<>();
+
+    /**
+     * A process, from start to end.
+     */
+    /* package private */ static final class Timeline {
+        private final String correlationId;
+        private final String processMoniker;
+        private final long startMillis = System.currentTimeMillis();
+        private final long startNanos = System.nanoTime();
+
+        private final Span[] spans = new Span[MAX_SPANS];
+        private int spanCount = 0;
+        private int droppedSpans = 0;
+        private long endNanos = 0L;
+        private int status = 0;
+
+        private Timeline(String correlationId, String processMoniker) {
+            this.correlationId = correlationId;
+            this.processMoniker = processMoniker;
+        }
+
+        private synchronized Span add(Span span) {
+            if (spanCount == MAX_SPANS) {
+                droppedSpans++;
+                return null;
+            }
+            spans[spanCount++] = span;
+            return span;
+        }
+
+        /**
+         * Ends process, with status of response to invocation request.
+         */
+        /* package private */ synchronized void end(int status) {
+            this.endNanos = System.nanoTime();
+            this.status = status;
+        }
+
+        /* package private */ synchronized JsonObject toJson() {
+            JsonObject json = new JsonObject();
+            json.addProperty("correlationId", correlationId);
+            json.addProperty("process", processMoniker);
+            json.addProperty("started", startMillis);
+            if (endNanos > 0L) {
+                json.addProperty("durationMillis", millis(endNanos - startNanos));
+                json.addProperty("status", status);
+            }
+
+            JsonArray _spans = new JsonArray();
+            for (int i = 0; i < spanCount; i++) {
+                _spans.add(spans[i].toJson(startNanos));
+            }
+            json.add("steps", _spans);
+            if (droppedSpans > 0) {
+                json.addProperty("droppedSteps", droppedSpans);
+            }
+            return json;
+        }
+    }
+
+    /**
+     * A step, invoked (forward) or compensated (backward), and the attempts at calling the backend.
+     */
+    /* package private */ static final class Span {
+        private final String step;
+        private final String direction;
+        private final URI uri;
+        private final long startNanos = System.nanoTime();
+
+        // Per attempt: start, end, status (0 if no response), bytes sent and bytes received
+        private final long[][] attempts = new long[MAX_ATTEMPTS][];
+        private int attemptCount = 0;
+        private int droppedAttempts = 0;
+        private boolean cached = false;
+        private long endNanos = 0L;
+        private ProcessMetrics.Outcome outcome = null;
+
+        private Span(String step, String direction, URI uri) {
+            this.step = step;
+            this.direction = direction;
+            this.uri = uri;
+        }
+
+        /**
+         * Records an attempt at calling the backend.
+         * @param status of reply, or 0 if backend did not reply
+         */
+        /* package private */ synchronized void attempt(long startNanos, int status, long sent, long received) {
+            if (attemptCount == MAX_ATTEMPTS) {
+                droppedAttempts++;
+                return;
+            }
+            attempts[attemptCount++] = new long[]{startNanos, System.nanoTime(), status, sent, received};
+        }
+
+        /**
+         * Records that result was taken from cache, and backend not called.
+         */
+        /* package private */ synchronized void cached() {
+            this.cached = true;
+        }
+
+        /* package private */ synchronized void end(ProcessMetrics.Outcome outcome) {
+            this.endNanos = System.nanoTime();
+            this.outcome = outcome;
+        }
+
+        private synchronized JsonObject toJson(long originNanos) {
+            JsonObject json = new JsonObject();
+            json.addProperty("step", step);
+            json.addProperty("direction", direction);
+            json.addProperty("uri", uri.toString());
+            json.addProperty("startMillis", millis(startNanos - originNanos));
+            if (endNanos > 0L) {
+                json.addProperty("durationMillis", millis(endNanos - startNanos));
+                json.addProperty("outcome", outcome.name().toLowerCase());
+            }
+            if (cached) {
+                json.addProperty("cached", true);
+            }
+            json.addProperty("retries", Math.max(0, attemptCount + droppedAttempts - 1));
+
+            JsonArray _attempts = new JsonArray();
+            for (int i = 0; i < attemptCount; i++) {
+                long[] attempt = attempts[i];
+                JsonObject _attempt = new JsonObject();
+                _attempt.addProperty("startMillis", millis(attempt[0] - originNanos));
+                _attempt.addProperty("durationMillis", millis(attempt[1] - attempt[0]));
+                if (attempt[2] > 0L) {
+                    _attempt.addProperty("status", attempt[2]);
+                }
+                _attempt.addProperty("bytesSent", attempt[3]);
+                _attempt.addProperty("bytesReceived", attempt[4]);
+                _attempts.add(_attempt);
+            }
+            json.add("attempts", _attempts);
+            return json;
+        }
+    }
+
+    private ProcessTimelines() {}
+
+    /**
+     * Sets number of processes for which timelines are kept. Should be called before any
+     * process is run.
+     * @param maxProcesses number of timelines kept, 0 disables timelines
+     */
+    /* package private */ static synchronized void configure(int maxProcesses) {
+        if (maxProcesses < 0) {
+            String info = "Number of process timelines must not be negative: " + maxProcesses;
+            throw new IllegalArgumentException(info);
+        }
+        ring = new AtomicReferenceArray<>(maxProcesses);
+        index.clear();
+    }
+
+    /**
+     * Starts timeline of a process, replacing the oldest timeline if the buffer is full.
+     * @return timeline, or null if timelines are disabled
+     */
+    /* package private */ static Timeline start(String correlationId, String processMoniker) {
+        AtomicReferenceArray<Timeline> _ring = ring;
+        if (0 == _ring.length()) {
+            return null;
+        }
+        Timeline timeline = new Timeline(correlationId, processMoniker);
+        int slot = (int) (next.getAndIncrement() % _ring.length());
+        index.put(correlationId, timeline);
+        Timeline replaced = _ring.getAndSet(slot, timeline);
+        if (null != replaced) {
+            index.remove(replaced.correlationId, replaced);
+        }
+        return timeline;
+    }
+
+    /**
+     * Starts a span of a step in the timeline of a process, if there is one.
+     * @param direction "forward" or "backward"
+     * @return span, or null if process has no timeline
+     */
+    /* package private */ static Span span(String correlationId, ProcessMetrics.Step step, String direction, URI uri) {
+        if (null == correlationId || null == step) {
+            return null;
+        }
+        Timeline timeline = index.get(correlationId);
+        if (null == timeline) {
+            return null;
+        }
+        return timeline.add(new Span(step.getStep(), direction, uri));
+    }
+
+    /* package private */ static Optional<Timeline> get(String correlationId) {
+        return Optional.ofNullable(index.get(correlationId));
+    }
+
+    private static double millis(long nanos) {
+        return Math.round(nanos / 1e3) / 1e3;
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2018 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.gautelis.restitch;
+
+import org.gautelis.muprocessmanager.MuProcessException;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded in-memory cache of results of recently finished (successful) processes, so that
+ * clients polling for a result right after invoking a process need not hit the database.
+ * <p>
+ * Only results of successful processes are cached, since these will not change. Entries are
+ * evicted in least-recently-used order when the cache is full and expire when the process
+ * manager stops tracking the process (after 'minutes-to-track-process').
+ * <p>
+ * Lookups of results not in cache are made against the database, and concurrent lookups
+ * for the same process are coalesced into one.
+ */
+/* package private */ class ResultCache {
+
+    @FunctionalInterface
+    /* package private */ interface Loader {
+        Optional<String> load(String correlationId) throws MuProcessException;
+    }
+
+    private static class Entry {
+        private final String json;
+        private final long expires;
+
+        private Entry(String json, long expires) {
+            this.json = json;
+            this.expires = expires;
+        }
+    }
+
+    private final int maxEntries;
+    private final long ttlNanos;
+
+    private final Map<String, Entry> entries;
+    private final Map<String, CompletableFuture<Optional<String>>> loading = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = Metrics.counter(Metrics.series("restitch_result_cache_requests_total", "outcome", "hit"));
+    private final LongAdder misses = Metrics.counter(Metrics.series("restitch_result_cache_requests_total", "outcome", "miss"));
+    private final LongAdder coalesced = Metrics.counter(Metrics.series("restitch_result_cache_requests_total", "outcome", "coalesced"));
+
+    /**
+     * @param maxEntries max number of cached results, where 0 disables the cache
+     * @param ttlMinutes minutes to keep results, typically 'minutes-to-track-process'
+     */
+    /* package private */ ResultCache(final int maxEntries, int ttlMinutes) {
+        this.maxEntries = maxEntries;
+        this.ttlNanos = TimeUnit.MINUTES.toNanos(ttlMinutes);
+
+        // Access ordered, i.e. least recently used first
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+
+        Metrics.gauge("restitch_result_cache_size", this::size);
+    }
+
+    /* package private */ boolean isEnabled() {
+        return maxEntries > 0 && ttlNanos > 0;
+    }
+
+    /**
+     * Caches result of a successful process.
+     */
+    /* package private */ void put(String correlationId, String json) {
+        if (!isEnabled()) {
+            return;
+        }
+        synchronized (entries) {
+            entries.put(correlationId, new Entry(json, System.nanoTime() + ttlNanos));
+        }
+    }
+
+    /* package private */ void invalidate(String correlationId) {
+        synchronized (entries) {
+            entries.remove(correlationId);
+        }
+    }
+
+    /**
+     * Gets result for process, from cache if available and otherwise using the loader.
+     * Results loaded this way are not cached, since the process may still be running.
+     */
+    /* package private */ Optional<String> get(String correlationId, Loader loader) throws MuProcessException {
+        Optional<String> json = lookup(correlationId);
+        if (json.isPresent()) {
+            hits.increment();
+            return json;
+        }
+        misses.increment();
+
+        CompletableFuture<Optional<String>> load = new CompletableFuture<>();
+        CompletableFuture<Optional<String>> ongoing = loading.putIfAbsent(correlationId, load);
+        if (null != ongoing) {
+            // Someone else is already loading this result
+            coalesced.increment();
+            return await(ongoing);
+        }
+
+        try {
+            load.complete(loader.load(correlationId));
+        } catch (MuProcessException | RuntimeException e) {
+            load.completeExceptionally(e);
+        } finally {
+            loading.remove(correlationId, load);
+        }
+        return await(load);
+    }
+
+    private Optional<String> lookup(String correlationId) {
+        synchronized (entries) {
+            Entry entry = entries.get(correlationId);
+            if (null == entry) {
+                return Optional.empty();
+            }
+            if (entry.expires - System.nanoTime() <= 0) {
+                entries.remove(correlationId);
+                return Optional.empty();
+            }
+            return Optional.of(entry.json);
+        }
+    }
+
+    private static Optional<String> await(CompletableFuture<Optional<String>> load) throws MuProcessException {
+        try {
+            return load.join();
+        } catch (CompletionException ce) {
+            Throwable cause = ce.getCause();
+            if (cause instanceof MuProcessException) {
+                throw (MuProcessException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw ce;
+        }
+    }
+
+    private int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2018 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.gautelis.restitch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Retry policy, deciding whether a failed call is re-tried and for how long to back off
+ * before doing so.
+ * <p>
+ * A quick retry of a call that failed for transient reasons (a reset connection, a 503
+ * from an overloaded backend, ...) is far cheaper than compensating all earlier steps
+ * in the process. Retries are drawn from a budget shared by all backends, which is
+ * replenished as a fraction of the calls made, so that a degraded backend does not get
+ * an ever growing storm of retries.
+ * <p>
+ * Calls are not re-tried unless a policy is stated for the step in the process specification.
+ * Steps in an execution plan have their own policies (see {@link CallPolicy}), whereas calls
+ * made outside of a plan, e.g. when compensating in the background, use the policy of the
+ * backend.
+ */
+/* package private */ class RetryPolicy {
+    private static final Logger log = LoggerFactory.getLogger(RetryPolicy.class);
+
+    /*
+     * Retries available as a fraction of calls made, with a (time based) minimum so that
+     * backends with little traffic may retry as well.
+     */
+    private static class Budget {
+        private final double ratio;
+        private final double minPerNano;
+        private final double capacity;
+
+        private double tokens;
+        private long refilled = System.nanoTime();
+
+        private Budget(int percent, int minPerSecond) {
+            this.ratio = percent / 100.0;
+            this.minPerNano = minPerSecond / (double) TimeUnit.SECONDS.toNanos(1);
+            this.capacity = Math.max(100.0, 10.0 * minPerSecond);
+            this.tokens = capacity;
+        }
+
+        private synchronized void deposit() {
+            tokens = Math.min(capacity, tokens + ratio);
+        }
+
+        private synchronized boolean withdraw() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - refilled) * minPerNano);
+            refilled = now;
+            if (tokens >= 1.0) {
+                tokens -= 1.0;
+                return true;
+            }
+            return false;
+        }
+
+        private synchronized double available() {
+            return tokens;
+        }
+    }
+
+    private static volatile Budget budget = new Budget(10, 10);
+
+    private static final Map<URI, RetryPolicy> policies = new ConcurrentHashMap<>();
+
+    private final int maxAttempts;
+    private final long backoffNanos;
+    private final long maxBackoffNanos;
+    private final Set<Integer> statuses;
+    private final Set<String> exceptions;
+
+    private final LongAdder attempts;
+    private final LongAdder retries;
+    private final LongAdder exhaustedAttempts;
+    private final LongAdder exhaustedBudget;
+
+    static {
+        Metrics.gauge("restitch_retry_budget_available", () -> (long) budget.available());
+    }
+
+    private RetryPolicy(URI uri, ProcessSpecification.Retry retry) {
+        if (null != retry) {
+            this.maxAttempts = retry.getMaxAttempts();
+            this.backoffNanos = TimeUnit.MILLISECONDS.toNanos(retry.getBackoffMillis());
+            this.maxBackoffNanos = TimeUnit.MILLISECONDS.toNanos(retry.getMaxBackoffMillis());
+            this.statuses = new HashSet<>(retry.getStatuses());
+            this.exceptions = new HashSet<>(retry.getExceptions());
+        } else {
+            this.maxAttempts = 1;
+            this.backoffNanos = 0L;
+            this.maxBackoffNanos = 0L;
+            this.statuses = Collections.emptySet();
+            this.exceptions = Collections.emptySet();
+        }
+
+        String _uri = uri.toString();
+        this.attempts = Metrics.counter(Metrics.series("restitch_backend_attempts_total", "uri", _uri));
+        this.retries = Metrics.counter(Metrics.series("restitch_backend_retries_total", "uri", _uri));
+        this.exhaustedAttempts = Metrics.counter(Metrics.series("restitch_backend_retries_exhausted_total", "uri", _uri, "reason", "attempts"));
+        this.exhaustedBudget = Metrics.counter(Metrics.series("restitch_backend_retries_exhausted_total", "uri", _uri, "reason", "budget"));
+    }
+
+    /**
+     * @param budgetPercent retries available, as percentage of calls made
+     * @param budgetMinPerSecond retries available per second, regardless of calls made
+     */
+    /* package private */ static void configure(int budgetPercent, int budgetMinPerSecond) {
+        if (budgetPercent < 0 || budgetMinPerSecond < 0) {
+            String info = "Illegal retry budget configuration: ";
+            info += budgetPercent + "% of calls, at least " + budgetMinPerSecond + " per second";
+            throw new IllegalArgumentException(info);
+        }
+        budget = new Budget(budgetPercent, budgetMinPerSecond);
+    }
+
+    /**
+     * Applies retry policies to backends, as stated for steps in the process specification.
+     * If the same backend is configured differently in different steps, the policy with fewest
+     * attempts is used. When the specification is reloaded, backends no longer having a policy
+     * are not re-tried.
+     */
+    /* package private */ static synchronized void configure(ProcessSpecification specification) {
+        Map<URI, ProcessSpecification.Retry> retries = new HashMap<>();
+        specification.forEachSpecification(s -> {
+            Optional<ProcessSpecification.Retry> retry = s.getRetry();
+            if (!retry.isPresent()) {
+                return;
+            }
+            for (URI uri : s.getURIs()) {
+                retries.merge(uri, retry.get(), (r1, r2) -> r1.getMaxAttempts() <= r2.getMaxAttempts() ? r1 : r2);
+            }
+        });
+
+        policies.replaceAll((uri, policy) -> retries.containsKey(uri) || 1 == policy.maxAttempts ? policy : new RetryPolicy(uri, null));
+        retries.forEach((uri, retry) -> {
+            log.info("Retry policy for {}: at most {} attempts", uri, retry.getMaxAttempts());
+            policies.put(uri, new RetryPolicy(uri, retry));
+        });
+    }
+
+    /**
+     * @return current policy of backend
+     */
+    /* package private */ static RetryPolicy of(URI uri) {
+        return policies.computeIfAbsent(uri, u -> new RetryPolicy(u, null));
+    }
+
+    /**
+     * @return policy of a step calling backend, as stated in the process specification
+     */
+    /* package private */ static RetryPolicy of(URI uri, Optional<ProcessSpecification.Retry> retry) {
+        return new RetryPolicy(uri, retry.orElse(null));
+    }
+
+    /**
+     * Records that a call is made.
+     * @param attempt 1 for the first attempt
+     */
+    /* package private */ void onAttempt(int attempt) {
+        attempts.increment();
+        if (1 == attempt) {
+            budget.deposit();
+        }
+    }
+
+    /**
+     * Decides whether a call that was answered with status is re-tried.
+     * @param attempt 1 for the first attempt
+     */
+    /* package private */ boolean retry(int attempt, int status) {
+        return statuses.contains(status) && mayRetry(attempt);
+    }
+
+    /**
+     * Decides whether a call that failed with exception is re-tried.
+     * @param attempt 1 for the first attempt
+     */
+    /* package private */ boolean retry(int attempt, Throwable t) {
+        return retryable(t) && mayRetry(attempt);
+    }
+
+    /**
+     * @return time to back off before next attempt, exponentially growing with (equal) jitter
+     */
+    /* package private */ long backoffNanos(int attempt) {
+        long ceiling = maxBackoffNanos;
+        if (attempt <= 62 && backoffNanos <= (maxBackoffNanos >> (attempt - 1))) {
+            ceiling = backoffNanos << (attempt - 1);
+        }
+        long half = ceiling / 2;
+        return half + ThreadLocalRandom.current().nextLong(half + 1);
+    }
+
+    private boolean mayRetry(int attempt) {
+        if (attempt >= maxAttempts) {
+            if (maxAttempts > 1) {
+                exhaustedAttempts.increment();
+            }
+            return false;
+        }
+        if (!budget.withdraw()) {
+            exhaustedBudget.increment();
+            return false;
+        }
+        retries.increment();
+        return true;
+    }
+
+    private boolean retryable(Throwable t) {
+        if (exceptions.isEmpty()) {
+            return false;
+        }
+        while ((t instanceof CompletionException || t instanceof ExecutionException) && null != t.getCause()) {
+            t = t.getCause();
+        }
+        if (t instanceof CircuitBreaker.OpenException || t instanceof ConcurrencyLimiter.LimitExceededException) {
+            // Refused locally, so retrying right away will not help
+            return false;
+        }
+        for (Class<?> c = t.getClass(); null != c; c = c.getSuperclass()) {
+            if (exceptions.contains(c.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
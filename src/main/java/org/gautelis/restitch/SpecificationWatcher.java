@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2018 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.gautelis.restitch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Watches the process specification file, reloading it when changed so that processes may
+ * be added or changed without restarting.
+ * <p>
+ * A changed specification is validated before being handed over, and an invalid specification
+ * is logged and otherwise ignored (keeping the current specification). Since editors and
+ * deployment tools tend to replace files rather than modify them in place, the directory
+ * is watched and changes are detected by comparing file contents.
+ */
+/* package private */ class SpecificationWatcher {
+    private static final Logger log = LoggerFactory.getLogger(SpecificationWatcher.class);
+
+    // Wait for a burst of file system events to settle before reloading
+    private static final long SETTLE_MILLIS = 250;
+
+    @FunctionalInterface
+    /* package private */ interface Loader {
+        ProcessSpecification load() throws IOException;
+    }
+
+    private final Path file;
+    private final Loader loader;
+    private final Consumer<ProcessSpecification> listener;
+
+    private byte[] digest;
+    private volatile long loaded = System.currentTimeMillis();
+
+    private final LongAdder reloads = Metrics.counter(Metrics.series("restitch_specification_reloads_total", "outcome", "success"));
+    private final LongAdder failures = Metrics.counter(Metrics.series("restitch_specification_reloads_total", "outcome", "failure"));
+
+    /**
+     * @param file specification file, as currently loaded
+     * @param loader loads (and validates) specification
+     * @param listener receives reloaded specifications
+     */
+    /* package private */ SpecificationWatcher(File file, Loader loader, Consumer<ProcessSpecification> listener) {
+        this.file = file.toPath().toAbsolutePath();
+        this.loader = loader;
+        this.listener = listener;
+        this.digest = digestOf(this.file);
+
+        Metrics.gauge("restitch_specification_loaded_seconds", () -> TimeUnit.MILLISECONDS.toSeconds(loaded));
+    }
+
+    /* package private */ void start() throws IOException {
+        final WatchService watcher = FileSystems.getDefault().newWatchService();
+        file.getParent().register(watcher,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_DELETE
+        );
+
+        Thread thread = new Thread(() -> watch(watcher), "restitch-specification-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        log.info("Watching process specification {}", file);
+    }
+
+    private void watch(WatchService watcher) {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = watcher.take();
+                do {
+                    key.pollEvents();
+                    if (!key.reset()) {
+                        log.warn("Stopped watching process specification {}", file);
+                        return;
+                    }
+                } while (null != (key = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)));
+
+                reloadIfChanged();
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                watcher.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    private void reloadIfChanged() {
+        if (!Files.isReadable(file)) {
+            // Probably being replaced
+            return;
+        }
+        byte[] _digest = digestOf(file);
+        if (Arrays.equals(digest, _digest)) {
+            return;
+        }
+        digest = _digest; // don't retry an invalid specification until it is changed again
+
+        ProcessSpecification specification;
+        try {
+            specification = loader.load();
+        } catch (IOException | RuntimeException e) {
+            failures.increment();
+            String info = "Keeping current process specification, since changed specification is not valid: ";
+            info += e.getMessage();
+            log.warn(info);
+            return;
+        }
+
+        try {
+            listener.accept(specification);
+        } catch (RuntimeException re) {
+            failures.increment();
+            String info = "Keeping current process specification, since changed specification could not be applied: ";
+            info += re.getMessage();
+            log.warn(info);
+            return;
+        }
+        loaded = System.currentTimeMillis();
+        reloads.increment();
+        log.info("Reloaded process specification {}", file);
+    }
+
+    private static byte[] digestOf(Path file) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(file));
+        } catch (IOException ioe) {
+            return new byte[0];
+        } catch (NoSuchAlgorithmException nsae) {
+            // SHA-256 is mandatory for all Java platforms
+            throw new IllegalStateException(nsae.getMessage(), nsae);
+        }
+    }
+}
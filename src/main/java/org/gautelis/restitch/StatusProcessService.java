@@ -28,7 +28,7 @@ import org.wso2.carbon.metrics.core.annotation.Timed;
 import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
-import java.util.Collection;
+import javax.ws.rs.core.UriBuilder;
 import java.util.Optional;
 
 @Api(value = "status")
@@ -48,15 +48,21 @@ public class StatusProcessService {
     private static final Logger log = LoggerFactory.getLogger(StatusProcessService.class);
 
     private final MuProcessManager manager;
+    private final ProcessMonikers monikers;
 
-    /* package private */ StatusProcessService(MuProcessManager manager) {
+    /* package private */ StatusProcessService(MuProcessManager manager, ProcessMonikers monikers) {
         this.manager = manager;
+        this.monikers = monikers;
     }
 
     /**
-     * Retrieve status for all processes
+     * Retrieve status for processes, one page at a time and optionally filtered on state,
+     * process moniker and time of creation. If there are more processes, a cursor to
+     * the next page is provided in a 'Link' header.
      * <p>
      * curl http://localhost:8080/status
+     * <p>
+     * curl -v "http://localhost:8080/status?state=COMPENSATED,ABANDONED&since=2018-11-01T00:00:00Z&limit=100"
      * @return collection of processes' details
      */
     @GET
@@ -65,14 +71,55 @@ public class StatusProcessService {
     @Produces({MediaType.APPLICATION_JSON, MediaType.TEXT_PLAIN})
     @ApiOperation(
             value = "Return list of processes' details, identified by correlation ID",
-            notes = "Contains details about processes")
+            notes = "Contains details about processes, in order of creation")
     @ApiResponses(value = {
             @ApiResponse(code = 200 /* OK */, message = "OK"),
+            @ApiResponse(code = 400 /* Bad Request */, message = "Invalid filter or cursor"),
             @ApiResponse(code = 598 /* Request failure */, message = "Failed to process request")})
-    public Response getProcessStatus() {
+    public Response getProcessStatus(
+            @ApiParam(value = "State(s)", required = false) @QueryParam("state") String state,
+            @ApiParam(value = "ProcessMoniker", required = false) @QueryParam("process") String processMoniker,
+            @ApiParam(value = "Created since (ISO-8601)", required = false) @QueryParam("since") String since,
+            @ApiParam(value = "Created before (ISO-8601)", required = false) @QueryParam("until") String until,
+            @ApiParam(value = "Cursor", required = false) @QueryParam("cursor") String cursor,
+            @ApiParam(value = "Limit", required = false) @QueryParam("limit") @DefaultValue("0") int limit
+    ) {
+        ProcessDetailsPage page;
+        try {
+            page = new ProcessDetailsPage(state, processMoniker, monikers, since, until, cursor, limit);
+
+        } catch (IllegalArgumentException iae) {
+            String info = iae.getMessage();
+            log.debug(info);
+            return Response.status(400).type(MediaType.TEXT_PLAIN_TYPE).entity(info).build();
+        }
+
         try {
-            Collection<MuProcessDetails> details = manager.getProcessDetails();
-            return Response.ok(details, MediaType.APPLICATION_JSON_TYPE).build();
+            // The process manager provides all processes at once, but only those on page are kept
+            page.select(manager.getProcessDetails());
+
+            Response.ResponseBuilder response = Response.ok(page.asJson(), MediaType.APPLICATION_JSON_TYPE);
+            Optional<String> next = page.nextCursor();
+            if (next.isPresent()) {
+                UriBuilder link = UriBuilder.fromPath("/status").queryParam("cursor", next.get());
+                if (null != state) {
+                    link.queryParam("state", state);
+                }
+                if (null != processMoniker) {
+                    link.queryParam("process", processMoniker);
+                }
+                if (null != since) {
+                    link.queryParam("since", since);
+                }
+                if (null != until) {
+                    link.queryParam("until", until);
+                }
+                if (limit > 0) {
+                    link.queryParam("limit", limit);
+                }
+                response.header("Link", "<" + link.build() + ">; rel=\"next\"");
+            }
+            return response.build();
 
         } catch (MuProcessException mpe) {
             String info = "Failed to retrieve process details: ";
@@ -126,5 +173,32 @@ public class StatusProcessService {
             return Response.status(500).type(MediaType.TEXT_PLAIN_TYPE).entity(info).build();
         }
     }
+
+    /**
+     * Retrieve timeline of a recently run process (identified by correlation ID), i.e. when each
+     * step was invoked or compensated, and how every call to the backend went.
+     * <p>
+     * curl http://localhost:8080/status/775113c6-8f7a-4f0d-b5fd-9139727ef224/timeline
+     */
+    @GET
+    @Timed
+    @Path("/{correlationId}/timeline")
+    @ApiOperation(
+            value = "Return timeline for process identified by correlation ID",
+            notes = "Only recently run processes, that were run by this node, have timelines")
+    @Produces({MediaType.APPLICATION_JSON, MediaType.TEXT_PLAIN})
+    @ApiResponses(value = {
+            @ApiResponse(code = 200 /* OK */, message = "OK"),
+            @ApiResponse(code = 404 /* Not Found */, message = "No timeline for process")})
+    public Response getProcessTimeline(
+            @ApiParam(value = "CorrelationId", required = true) @PathParam("correlationId") String correlationId
+    ) {
+        Optional<ProcessTimelines.Timeline> timeline = ProcessTimelines.get(correlationId);
+        if (!timeline.isPresent()) {
+            String info = String.format("No timeline for process (referred to by correlation ID \"%s\"), since not recently run by this node", correlationId);
+            return Response.status(404).type(MediaType.TEXT_PLAIN_TYPE).entity(info).build();
+        }
+        return Response.ok(timeline.get().toJson().toString(), MediaType.APPLICATION_JSON_TYPE).build();
+    }
 }
 
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2018 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.gautelis.restitch;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded in-memory cache of results of cacheable activities, i.e. pure lookups whose result
+ * depends only on the payload, so that they need not be invoked again for every process.
+ * <p>
+ * Results are keyed by invocation URI and a digest of the payload, and expire after the
+ * time stated for the step in the process specification. Only steps marked as cacheable
+ * use the cache, even if other steps call the same backend. The cache is bounded by the
+ * (approximate) memory held by results, least recently used results being evicted first.
+ */
+/* package private */ class StepResultCache {
+
+    // Approximate memory held by an entry, apart from the result itself
+    private static final int ENTRY_OVERHEAD = 160;
+
+    /* package private */ static final class Key {
+        private final URI uri;
+        private final byte[] digest;
+        private final int hash;
+        private final long ttlNanos; // of step looking up result, not part of key
+
+        private Key(URI uri, byte[] digest, long ttlNanos) {
+            this.uri = uri;
+            this.digest = digest;
+            this.hash = 31 * uri.hashCode() + Arrays.hashCode(digest);
+            this.ttlNanos = ttlNanos;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && uri.equals(other.uri) && Arrays.equals(digest, other.digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /* package private */ static final class Entry {
+        /* package private */ final String json; // null if activity did not reply with JSON
+        private final long expires;
+        private final long weight;
+
+        private Entry(String json, long expires) {
+            this.json = json;
+            this.expires = expires;
+            this.weight = ENTRY_OVERHEAD + (null != json ? 2L * json.length() : 0L);
+        }
+    }
+
+    // Access ordered, i.e. least recently used first
+    private static final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private static volatile long maxBytes = 64L * 1024 * 1024;
+
+    // Guarded by entries
+    private static long bytes = 0L;
+
+    private static final LongAdder hits = Metrics.counter(Metrics.series("restitch_step_cache_requests_total", "outcome", "hit"));
+    private static final LongAdder misses = Metrics.counter(Metrics.series("restitch_step_cache_requests_total", "outcome", "miss"));
+    private static final LongAdder evictions = Metrics.counter("restitch_step_cache_evictions_total");
+
+    static {
+        Metrics.gauge("restitch_step_cache_entries", StepResultCache::size);
+        Metrics.gauge("restitch_step_cache_bytes", StepResultCache::bytes);
+    }
+
+    private StepResultCache() {}
+
+    /**
+     * @param maxMegabytes max memory held by cached results, where 0 disables the cache
+     */
+    /* package private */ static void configure(int maxMegabytes) {
+        if (maxMegabytes < 0) {
+            String info = "Illegal step result cache size: " + maxMegabytes + "MB";
+            throw new IllegalArgumentException(info);
+        }
+        synchronized (entries) {
+            maxBytes = maxMegabytes * 1024L * 1024L;
+            evict();
+        }
+    }
+
+    /**
+     * @param policy of step calling backend
+     * @return key of result, if step is cacheable
+     */
+    /* package private */ static Optional<Key> keyFor(CallPolicy policy, URI invocationURI, Payload payload) {
+        if (0L == policy.cacheTtlNanos || 0L == maxBytes) {
+            return Optional.empty();
+        }
+        return Optional.of(new Key(invocationURI, payload.digest(), policy.cacheTtlNanos));
+    }
+
+    /**
+     * @return cached result, if available and not expired
+     */
+    /* package private */ static Optional<Entry> get(Key key) {
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (null != entry && entry.expires - System.nanoTime() <= 0) {
+                remove(key);
+                entry = null;
+            }
+            if (null == entry) {
+                misses.increment();
+                return Optional.empty();
+            }
+            hits.increment();
+            return Optional.of(entry);
+        }
+    }
+
+    /**
+     * Caches result of a successful activity.
+     * @param json reply from activity, or null if it did not reply with JSON
+     */
+    /* package private */ static void put(Key key, String json) {
+        Entry entry = new Entry(json, System.nanoTime() + key.ttlNanos);
+
+        synchronized (entries) {
+            if (entry.weight > maxBytes / 16) {
+                // Would evict too much of the cache
+                return;
+            }
+            remove(key);
+            entries.put(key, entry);
+            bytes += entry.weight;
+            evict();
+        }
+    }
+
+    private static void remove(Key key) {
+        Entry removed = entries.remove(key);
+        if (null != removed) {
+            bytes -= removed.weight;
+        }
+    }
+
+    private static void evict() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            bytes -= it.next().weight;
+            it.remove();
+            evictions.increment();
+        }
+    }
+
+    private static int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private static long bytes() {
+        synchronized (entries) {
+            return bytes;
+        }
+    }
+}
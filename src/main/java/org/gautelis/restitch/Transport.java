@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2018 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.gautelis.restitch;
+
+/**
+ * How process steps communicate with their backend(s).
+ */
+public enum Transport {
+    /**
+     * Blocking HTTP/1.1 client, holding a thread (and a connection) for the duration of a call.
+     * This is the default.
+     */
+    BLOCKING,
+
+    /**
+     * Non-blocking client, using HTTP/2 when negotiated (over TLS) with the backend and
+     * HTTP/1.1 otherwise.
+     */
+    ASYNC,
+
+    /**
+     * Non-blocking client, using HTTP/2 only -- with prior knowledge over cleartext
+     * connections. Calls to the same backend are multiplexed over one connection.
+     */
+    HTTP2;
+
+    /* package private */ static Transport of(String transport) {
+        if (null == transport || transport.isEmpty()) {
+            return BLOCKING;
+        }
+        try {
+            return valueOf(transport.trim().toUpperCase());
+        } catch (IllegalArgumentException iae) {
+            String info = "Unknown transport: \"" + transport + "\" (expected \"blocking\", \"async\" or \"http2\")";
+            throw new IllegalArgumentException(info);
+        }
+    }
+
+    /* package private */ String moniker() {
+        return name().toLowerCase();
+    }
+}
@@ -17,15 +17,12 @@
  */
 package org.gautelis.restitch;
 
-import org.apache.commons.io.IOUtils;
-import org.apache.http.Header;
 import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.ContentType;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.gautelis.muprocessmanager.MuActivityParameters;
 import org.gautelis.muprocessmanager.MuForwardActivityContext;
 import org.gautelis.muprocessmanager.MuBackwardActivityContext;
 import org.gautelis.muprocessmanager.MuForwardBehaviour;
@@ -36,8 +33,17 @@ import org.slf4j.LoggerFactory;
 
 import javax.ws.rs.core.MediaType;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 public class UncompensatedActivity implements MuForwardBehaviour {
     private static final Logger log = LoggerFactory.getLogger(ProcessService.class);
@@ -47,13 +53,37 @@ public class UncompensatedActivity implements MuForwardBehaviour {
 
     protected String correlationId = null;
     private URI invocationURI = null;
+    protected Transport transport = Transport.BLOCKING;
+    protected Payload payload = null;
+    /* package private */ ProcessMetrics.Step metrics = null; // null if not run as part of a plan
+    private CallPolicy policy = CallPolicy.NONE;
 
     public UncompensatedActivity(String correlationId, URI invocationURI) {
+        this(correlationId, invocationURI, Transport.BLOCKING, null);
+    }
+
+    /**
+     * @param payload process parameters (as bytes), if available, otherwise taken from the activity context
+     */
+    public UncompensatedActivity(String correlationId, URI invocationURI, Transport transport, Payload payload) {
         this.correlationId = correlationId;
         this.invocationURI = invocationURI;
+        this.transport = transport;
+        this.payload = payload;
+    }
+
+    /* package private */ UncompensatedActivity(
+            String correlationId, URI invocationURI, Transport transport, Payload payload, ProcessMetrics.Step metrics, CallPolicy policy
+    ) {
+        this(correlationId, invocationURI, transport, payload);
+        this.metrics = metrics;
+        this.policy = policy;
     }
 
     public boolean forward(MuForwardActivityContext context) {
+        final long start = System.nanoTime();
+        final ProcessTimelines.Span span = ProcessTimelines.span(correlationId, metrics, "forward", invocationURI);
+        final Object event = FlightRecording.beginStep();
         try {
             /*---------------------------------------------------------------------------------
              * This is enforced elsewhere!
@@ -62,12 +92,26 @@ public class UncompensatedActivity implements MuForwardBehaviour {
              *    throw new Exception("Configuration error: management policy \"assume-native-process-data-flow\" must be false!");
              * }
              *--------------------------------------------------------------------------------*/
-            MuForeignActivityParameters activityParameters = (MuForeignActivityParameters) context.getActivityParameters();
             MuForeignProcessResult result = (MuForeignProcessResult) context.getResult();
 
-            return post(correlationId, invocationURI, activityParameters.toJson(), result);
+            boolean success = post(transport, correlationId, invocationURI, payload(context.getActivityParameters()), null != result ? result::add : null, policy, span);
+            if (null != metrics) {
+                metrics.forward(start, ProcessMetrics.Outcome.of(success));
+            }
+            if (null != span) {
+                span.end(ProcessMetrics.Outcome.of(success));
+            }
+            FlightRecording.endStep(event, correlationId, metrics, "forward", invocationURI, ProcessMetrics.Outcome.of(success));
+            return success;
 
         } catch (Throwable t) {
+            if (null != metrics) {
+                metrics.forward(start, ProcessMetrics.Outcome.ERROR);
+            }
+            if (null != span) {
+                span.end(ProcessMetrics.Outcome.ERROR);
+            }
+            FlightRecording.endStep(event, correlationId, metrics, "forward", invocationURI, ProcessMetrics.Outcome.ERROR);
             String info = "Failed to invoke remote service: ";
             info += t.getMessage();
             log.info(info);
@@ -75,56 +119,461 @@ public class UncompensatedActivity implements MuForwardBehaviour {
         }
     }
 
-    protected static boolean post(String correlationId, URI uri, String json, MuForeignProcessResult result) throws IOException {
-        try (CloseableHttpClient client = HttpClients.createDefault()) {
+    /*
+     * Payload is shared among all activities in a process, but is not available when
+     * compensating in the background (i.e. after a restart).
+     */
+    protected Payload payload(MuActivityParameters activityParameters) {
+        if (null != payload) {
+            return payload;
+        }
+        return Payload.of(((MuForeignActivityParameters) activityParameters).toJson());
+    }
 
-            StringEntity requestEntity = new StringEntity(json, ContentType.APPLICATION_JSON);
-            HttpPost postMethod = new HttpPost(uri);
-            postMethod.setHeader("Correlation-ID", correlationId);
-            postMethod.setEntity(requestEntity);
+    /**
+     * Posts JSON to a backend, using specified transport, handing any JSON reply to the
+     * (optional) result consumer.
+     * @return true if backend accepted the request, false otherwise
+     */
+    protected static boolean post(Transport transport, String correlationId, URI uri, Payload payload, Consumer<String> result) throws IOException {
+        return post(transport, correlationId, uri, payload, result, CallPolicy.NONE, null);
+    }
+
+    /**
+     * Posts JSON to a backend, as above, according to the policy of the step, recording attempts
+     * in the (optional) span of the process timeline.
+     */
+    /* package private */ static boolean post(
+            Transport transport, String correlationId, URI uri, Payload payload, Consumer<String> result,
+            CallPolicy policy, ProcessTimelines.Span span
+    ) throws IOException {
+        if (Transport.BLOCKING == transport) {
+            return post(correlationId, uri, payload, result, policy, span);
+        }
+        return await(postAsync(transport, correlationId, uri, payload, result, policy, span), uri);
+    }
+
+    /**
+     * Posts JSON to a backend, using a non-blocking transport, handing any JSON reply to the
+     * (optional) result consumer. Failed calls are re-tried according to the retry policy of
+     * the backend, and results of cacheable activities are taken from cache if available.
+     * @return future indicating whether backend accepted the request or not
+     */
+    /* package private */ static CompletableFuture<Boolean> postAsync(Transport transport, String correlationId, URI uri, Payload payload, Consumer<String> result) {
+        return postAsync(transport, correlationId, uri, payload, result, CallPolicy.NONE, null);
+    }
+
+    /**
+     * Posts JSON to a backend, as above, according to the policy of the step, recording attempts
+     * in the (optional) span of the process timeline.
+     */
+    /* package private */ static CompletableFuture<Boolean> postAsync(
+            Transport transport, String correlationId, URI uri, Payload payload, Consumer<String> result,
+            CallPolicy policy, ProcessTimelines.Span span
+    ) {
+        Optional<StepResultCache.Key> key = StepResultCache.keyFor(policy, uri, payload);
+        if (key.isPresent()) {
+            Optional<StepResultCache.Entry> cached = StepResultCache.get(key.get());
+            if (cached.isPresent()) {
+                if (null != span) {
+                    span.cached();
+                }
+                return CompletableFuture.completedFuture(replay(cached.get(), result));
+            }
+        }
+
+        CompletableFuture<Boolean> outcome = new CompletableFuture<>();
+        postAsync(policy.retry(uri), policy.hedging, 1, transport, correlationId, uri, payload, key.orElse(null), result, span, outcome);
+        return outcome;
+    }
+
+    private static void postAsync(
+            final RetryPolicy retry, final Hedging hedging, final int attempt, Transport transport, String correlationId, URI uri,
+            Payload payload, StepResultCache.Key key, Consumer<String> result, ProcessTimelines.Span span,
+            CompletableFuture<Boolean> outcome
+    ) {
+        final long start = System.nanoTime();
+        final Object event = FlightRecording.beginBackendCall();
+        attemptAsync(retry, hedging, attempt, transport, correlationId, uri, payload).whenComplete((reply, t) -> {
+            if (null != span) {
+                span.attempt(start, null != t ? 0 : reply.status, payload.size(), null != t ? 0L : reply.bytes);
+            }
+            FlightRecording.endBackendCall(event, correlationId, uri, attempt, null != t ? 0 : reply.status, payload.size(), null != t ? 0L : reply.bytes);
+            if (null != t ? retry.retry(attempt, t) : retry.retry(attempt, reply.status)) {
+                log.debug("Re-trying call to {} (attempt {})", uri, attempt + 1);
+                try {
+                    Workers.scheduler().schedule(
+                            () -> postAsync(retry, hedging, attempt + 1, transport, correlationId, uri, payload, key, result, span, outcome),
+                            retry.backoffNanos(attempt), TimeUnit.NANOSECONDS
+                    );
+                    return;
+                } catch (RejectedExecutionException ree) {
+                    // Shutting down, so report current outcome
+                }
+            }
+
+            if (null != t) {
+                outcome.completeExceptionally(t);
+                return;
+            }
+            outcome.complete(deliver(uri, reply, key, result));
+        });
+    }
 
-            HttpResponse rawResponse = client.execute(postMethod);
+    /*
+     * Makes one attempt at calling backend, hedging the call if step is hedged.
+     * @param hedging of step, or null if not hedged
+     */
+    private static CompletableFuture<AsyncBackendClient.Reply> attemptAsync(
+            RetryPolicy retry, Hedging hedging, int attempt, Transport transport, String correlationId, URI uri, Payload payload
+    ) {
+        retry.onAttempt(attempt);
+
+        if (null == hedging) {
+            return callAsync(transport, correlationId, uri, payload, null);
+        }
+        BiConsumer<URI, CompletableFuture<AsyncBackendClient.Reply>> call = (_uri, reply) -> {
+            CompletableFuture<AsyncBackendClient.Reply> _reply = callAsync(transport, correlationId, _uri, payload, hedging);
+            _reply.whenComplete((r, t) -> {
+                if (null == t) {
+                    reply.complete(r);
+                } else {
+                    reply.completeExceptionally(t);
+                }
+            });
+            reply.whenComplete((r, t) -> {
+                if (reply.isCancelled()) {
+                    _reply.cancel(true);
+                }
+            });
+        };
+        return hedging.race(call, call);
+    }
+
+    /*
+     * Calls backend, using a non-blocking transport. Neither waiting for a slot among concurrent
+     * calls to backend nor the call itself blocks the calling thread, which may be the scheduler.
+     * @param hedging recording latency of call, or null if not hedged
+     * @return future reply, that may be cancelled
+     */
+    private static CompletableFuture<AsyncBackendClient.Reply> callAsync(
+            Transport transport, String correlationId, URI uri, Payload payload, Hedging hedging
+    ) {
+        final CircuitBreaker breaker = CircuitBreaker.of(uri);
+        final ConcurrencyLimiter limiter = ConcurrencyLimiter.of(uri);
+        final CompletableFuture<AsyncBackendClient.Reply> reply = new CompletableFuture<>();
+
+        limiter.acquireAsync().whenComplete((start, refusal) -> {
+            if (null != refusal) {
+                reply.completeExceptionally(refusal);
+                return;
+            }
+            if (reply.isDone()) {
+                // Cancelled while waiting for a slot
+                limiter.cancel();
+                return;
+            }
+            try {
+                breaker.acquire();
+            } catch (CircuitBreaker.OpenException oe) {
+                limiter.cancel();
+                reply.completeExceptionally(oe);
+                return;
+            }
+
+            CompletableFuture<AsyncBackendClient.Reply> call = AsyncBackendClient.post(transport, correlationId, uri, payload);
+            call.whenComplete((r, t) -> {
+                if (call.isCancelled()) {
+                    record(hedging, start);
+                    limiter.cancel();
+                    breaker.onCancel();
+                    return;
+                }
+                boolean failed = null != t || r.status >= 500;
+                if (!failed) {
+                    record(hedging, start);
+                }
+                limiter.release(start, failed);
+                if (null != t) {
+                    breaker.onFailure();
+                    reply.completeExceptionally(t);
+                } else {
+                    breaker.onStatus(r.status);
+                    reply.complete(r);
+                }
+            });
+
+            // Cancelling the reply (e.g. when a hedged call wins) cancels the call
+            reply.whenComplete((r, t) -> {
+                if (reply.isCancelled()) {
+                    call.cancel(true);
+                }
+            });
+        });
+        return reply;
+    }
+
+    /**
+     * Posts JSON to a backend, using the blocking transport, handing any JSON reply to the
+     * (optional) result consumer. Failed calls are re-tried according to the retry policy of
+     * the backend, and results of cacheable activities are taken from cache if available.
+     * @return true if backend accepted the request, false otherwise
+     */
+    protected static boolean post(String correlationId, URI uri, Payload payload, Consumer<String> result) throws IOException {
+        return post(correlationId, uri, payload, result, CallPolicy.NONE, null);
+    }
+
+    /**
+     * Posts JSON to a backend, as above, according to the policy of the step, recording attempts
+     * in the (optional) span of the process timeline.
+     */
+    /* package private */ static boolean post(
+            String correlationId, URI uri, Payload payload, Consumer<String> result, CallPolicy policy, ProcessTimelines.Span span
+    ) throws IOException {
+        Optional<StepResultCache.Key> key = StepResultCache.keyFor(policy, uri, payload);
+        if (key.isPresent()) {
+            Optional<StepResultCache.Entry> cached = StepResultCache.get(key.get());
+            if (cached.isPresent()) {
+                if (null != span) {
+                    span.cached();
+                }
+                return replay(cached.get(), result);
+            }
+        }
+
+        RetryPolicy retry = policy.retry(uri);
+        for (int attempt = 1; ; attempt++) {
+            final long start = System.nanoTime();
+            final Object event = FlightRecording.beginBackendCall();
+            AsyncBackendClient.Reply reply;
+            try {
+                reply = attempt(retry, policy.hedging, attempt, correlationId, uri, payload);
+            } catch (IOException | RuntimeException e) {
+                if (null != span) {
+                    span.attempt(start, 0, payload.size(), 0L);
+                }
+                FlightRecording.endBackendCall(event, correlationId, uri, attempt, 0, payload.size(), 0L);
+                if (!retry.retry(attempt, e)) {
+                    throw e;
+                }
+                backoff(retry, attempt, uri);
+                continue;
+            }
+            if (null != span) {
+                span.attempt(start, reply.status, payload.size(), reply.bytes);
+            }
+            FlightRecording.endBackendCall(event, correlationId, uri, attempt, reply.status, payload.size(), reply.bytes);
+            if (!retry.retry(attempt, reply.status)) {
+                return deliver(uri, reply, key.orElse(null), result);
+            }
+            backoff(retry, attempt, uri);
+        }
+    }
+
+    /*
+     * Makes one attempt at calling backend, hedging the call if step is hedged. The first
+     * call is made from the calling thread, while a hedged call is made from a thread of its own.
+     * @param hedging of step, or null if not hedged
+     */
+    private static AsyncBackendClient.Reply attempt(
+            RetryPolicy retry, Hedging hedging, int attempt, String correlationId, URI uri, Payload payload
+    ) throws IOException {
+        retry.onAttempt(attempt);
+
+        if (null == hedging) {
+            return call(correlationId, uri, payload, new HttpPost(uri), null);
+        }
+        return await(hedging.race(
+                (_uri, reply) -> call(correlationId, _uri, payload, reply, hedging),
+                (_uri, reply) -> Workers.activityExecutor().execute(() -> call(correlationId, _uri, payload, reply, hedging))
+        ), uri);
+    }
+
+    /*
+     * Calls backend, using the blocking transport, completing reply. Cancelling the reply
+     * aborts the call.
+     */
+    private static void call(
+            String correlationId, URI uri, Payload payload, CompletableFuture<AsyncBackendClient.Reply> reply, Hedging hedging
+    ) {
+        final HttpPost postMethod = new HttpPost(uri);
+        reply.whenComplete((r, t) -> {
+            if (reply.isCancelled()) {
+                postMethod.abort();
+            }
+        });
+        try {
+            reply.complete(call(correlationId, uri, payload, postMethod, hedging));
+        } catch (Throwable t) {
+            reply.completeExceptionally(t);
+        }
+    }
+
+    private static AsyncBackendClient.Reply call(
+            String correlationId, URI uri, Payload payload, HttpPost postMethod, Hedging hedging
+    ) throws IOException {
+        CircuitBreaker breaker = CircuitBreaker.of(uri);
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.of(uri);
+        long start = acquire(limiter, breaker);
+
+        AsyncBackendClient.Reply reply;
+        try {
+            reply = execute(correlationId, postMethod, payload);
+        } catch (Throwable t) {
+            if (postMethod.isAborted()) {
+                record(hedging, start);
+                limiter.cancel();
+                breaker.onCancel();
+            } else {
+                limiter.release(start, true);
+                breaker.onFailure();
+            }
+            throw t;
+        }
+        if (reply.status < 500) {
+            record(hedging, start);
+        }
+        limiter.release(start, reply.status >= 500);
+        breaker.onStatus(reply.status);
+        return reply;
+    }
+
+    /*
+     * Records latency of call made by a hedged step.
+     */
+    private static void record(Hedging hedging, long start) {
+        if (null != hedging) {
+            hedging.record(System.nanoTime() - start);
+        }
+    }
+
+    private static void backoff(RetryPolicy retry, int attempt, URI uri) throws InterruptedIOException {
+        log.debug("Re-trying call to {} (attempt {})", uri, attempt + 1);
+        try {
+            TimeUnit.NANOSECONDS.sleep(retry.backoffNanos(attempt));
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while backing off from " + uri);
+        }
+    }
+
+    /*
+     * Waits for a slot among concurrent calls to backend and then checks that the circuit
+     * is not open, giving back slot if it is. Only used by the blocking transport.
+     * @return time at which call starts
+     */
+    private static long acquire(ConcurrencyLimiter limiter, CircuitBreaker breaker) throws IOException {
+        long start = limiter.acquire();
+        try {
+            breaker.acquire();
+        } catch (CircuitBreaker.OpenException oe) {
+            limiter.cancel();
+            throw oe;
+        }
+        return start;
+    }
+
+    private static <T> T await(CompletableFuture<T> future, URI uri) throws IOException {
+        try {
+            return future.get();
+
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause.getMessage(), cause);
+
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + uri);
+        }
+    }
+
+    private static AsyncBackendClient.Reply execute(String correlationId, HttpPost postMethod, Payload payload) throws IOException {
+        postMethod.setHeader("Correlation-ID", correlationId);
+        postMethod.setEntity(payload.entity());
+
+        // The client is shared and long lived -- don't close it, but do close the response
+        // (after consuming the entity) so that the connection is returned to the pool.
+        try (CloseableHttpResponse rawResponse = BackendClient.clientFor(postMethod.getURI()).execute(postMethod)) {
             int status = rawResponse.getStatusLine().getStatusCode();
             String reason = rawResponse.getStatusLine().getReasonPhrase();
 
-            log.trace("Status: {}: {}", status, reason);
-
-            switch (status) {
-                case 401: // Unauthorized
-                case 403: // Forbidden
-                case 404: // Not Found
-                case 405: // Method Not Allowed
-                case 406: // Not Acceptable
-                case 407: // Proxy Authentication Required
-                case 410: // Gone
-                case 411: // Length Required
-                case 412: // Precondition Failed
-                case 414: // URI Too Long
-                case 415: // Unsupported Media Type
-                case 421: // Misdirected Request
-                case 426: // Upgrade required
-                    log.warn("Problem when communicating with endpoint {}: {} {}", uri, status, reason);
-                    break;
-
-                case 408: // Request Timeout
-                case 413: // Payload Too Large
-                    log.debug("Problem when communicating with endpoint {}: {} {}", uri, status, reason);
-                    break;
-
-                case 200:
-                    if (null != result) {
-                        HttpEntity replyEntity = rawResponse.getEntity();
-                        Header replyHeader = replyEntity.getContentType();
-                        if (MediaType.APPLICATION_JSON.equals(replyHeader.getValue())) {
-                            try (InputStream is = replyEntity.getContent()) {
-                                result.add(IOUtils.toString(is));
-                            }
-                        }
-                    }
-                    break;
-            }
-
-            return 200 == status;
-        }
-    }
-}
\ No newline at end of file
+            String json = null;
+            long bytes = 0L;
+            HttpEntity replyEntity = rawResponse.getEntity();
+            if (null != replyEntity) {
+                bytes = Math.max(0L, replyEntity.getContentLength()); // if known
+            }
+            if (200 == status && null != replyEntity) {
+                ContentType contentType = ContentType.get(replyEntity);
+                if (null != contentType && MediaType.APPLICATION_JSON.equalsIgnoreCase(contentType.getMimeType())) {
+                    // Read reply in one go (sized by Content-Length, if known) and decode it once
+                    byte[] reply = EntityUtils.toByteArray(replyEntity);
+                    Charset charset = null != contentType.getCharset() ? contentType.getCharset() : StandardCharsets.UTF_8;
+                    json = new String(reply, charset);
+                    bytes = reply.length;
+                }
+            }
+
+            EntityUtils.consume(replyEntity);
+            return new AsyncBackendClient.Reply(status, reason, json, bytes);
+        }
+    }
+
+    /*
+     * Hands any JSON reply to the (optional) result consumer, if backend accepted the request,
+     * caching the reply if the activity is cacheable.
+     */
+    private static boolean deliver(URI uri, AsyncBackendClient.Reply reply, StepResultCache.Key key, Consumer<String> result) {
+        log.trace("Status: {}: {}", reply.status, reply.reason);
+
+        boolean accepted = accepted(uri, reply.status, reply.reason);
+        if (accepted) {
+            if (null != key) {
+                StepResultCache.put(key, reply.json);
+            }
+            if (null != result && null != reply.json) {
+                result.accept(reply.json);
+            }
+        }
+        return accepted;
+    }
+
+    /*
+     * Hands a cached reply to the (optional) result consumer, as if the backend was called.
+     */
+    private static boolean replay(StepResultCache.Entry cached, Consumer<String> result) {
+        if (null != result && null != cached.json) {
+            result.accept(cached.json);
+        }
+        return true;
+    }
+
+    private static boolean accepted(URI uri, int status, String reason) {
+        switch (status) {
+            case 401: // Unauthorized
+            case 403: // Forbidden
+            case 404: // Not Found
+            case 405: // Method Not Allowed
+            case 406: // Not Acceptable
+            case 407: // Proxy Authentication Required
+            case 410: // Gone
+            case 411: // Length Required
+            case 412: // Precondition Failed
+            case 414: // URI Too Long
+            case 415: // Unsupported Media Type
+            case 421: // Misdirected Request
+            case 426: // Upgrade required
+                log.warn("Problem when communicating with endpoint {}: {} {}", uri, status, reason);
+                break;
+
+            case 408: // Request Timeout
+            case 413: // Payload Too Large
+                log.debug("Problem when communicating with endpoint {}: {} {}", uri, status, reason);
+                break;
+        }
+        return 200 == status;
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2018 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.gautelis.restitch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads used to run orchestrations (asynchronous processes) and activities (in
+ * parallel stages).
+ * <p>
+ * In {@link Mode#PLATFORM} mode, work is run on (bounded) pools of platform threads. In
+ * {@link Mode#VIRTUAL} mode, each task is run on a virtual thread of its own, so that
+ * tasks blocking in backend calls do not tie up platform threads. Virtual threads are
+ * available from Java 21, and are looked up at runtime since we still build for
+ * older runtimes.
+ */
+public final class Workers {
+    private static final Logger log = LoggerFactory.getLogger(Workers.class);
+
+    public enum Mode {
+        PLATFORM,
+        VIRTUAL
+    }
+
+    private static volatile Mode mode = Mode.PLATFORM;
+    private static volatile ExecutorService activityExecutor = null;
+    private static volatile ScheduledExecutorService scheduler = null;
+
+    private Workers() {}
+
+    /**
+     * Chooses execution mode. Should be called once, before any process is run.
+     * @param mode either "platform" or "virtual"
+     */
+    public static synchronized void configure(String mode) {
+        Mode _mode;
+        try {
+            _mode = Mode.valueOf(mode.trim().toUpperCase());
+        } catch (IllegalArgumentException | NullPointerException e) {
+            String info = "Unknown execution mode: \"" + mode + "\" (expected \"platform\" or \"virtual\")";
+            throw new IllegalArgumentException(info);
+        }
+        if (Mode.VIRTUAL == _mode && !virtualThreadsAvailable()) {
+            String info = "Execution mode \"virtual\" needs Java 21 or later, running on ";
+            info += System.getProperty("java.version");
+            throw new IllegalArgumentException(info);
+        }
+
+        if (null != activityExecutor) {
+            activityExecutor.shutdown();
+            activityExecutor = null;
+        }
+        Workers.mode = _mode;
+        log.info("Running processes and activities on {} threads", _mode.name().toLowerCase());
+    }
+
+    public static Mode mode() {
+        return mode;
+    }
+
+    /**
+     * Returns executor used for running activities in parallel stages.
+     */
+    /* package private */ static ExecutorService activityExecutor() {
+        ExecutorService executor = activityExecutor;
+        if (null == executor) {
+            synchronized (Workers.class) {
+                executor = activityExecutor;
+                if (null == executor) {
+                    if (Mode.VIRTUAL == mode) {
+                        executor = newVirtualThreadPerTaskExecutor("restitch-activity-");
+                    } else {
+                        // Effectively bounded by the HTTP connection pool(s)
+                        executor = Executors.newCachedThreadPool(newThreadFactory("restitch-activity-"));
+                    }
+                    activityExecutor = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Returns executor used for delayed tasks, such as re-trying calls over non-blocking
+     * transports. Tasks should be brief and not block.
+     */
+    /* package private */ static ScheduledExecutorService scheduler() {
+        ScheduledExecutorService executor = scheduler;
+        if (null == executor) {
+            synchronized (Workers.class) {
+                executor = scheduler;
+                if (null == executor) {
+                    executor = Executors.newSingleThreadScheduledExecutor(newThreadFactory("restitch-scheduler-"));
+                    scheduler = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Creates executor used for running (asynchronous) processes. The number of concurrent
+     * processes is bounded elsewhere, the number of threads is bounded here unless
+     * running on virtual threads.
+     */
+    /* package private */ static ExecutorService newProcessExecutor(int threads) {
+        if (Mode.VIRTUAL == mode) {
+            return newVirtualThreadPerTaskExecutor("restitch-process-");
+        }
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                threads, threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                newThreadFactory("restitch-process-"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Creates executor used for bulk maintenance operations against the database, where
+     * the number of threads bounds the number of concurrent operations (in any mode).
+     */
+    /* package private */ static ExecutorService newMaintenanceExecutor(int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                threads, threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                newThreadFactory("restitch-maintenance-"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static ThreadFactory newThreadFactory(final String prefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, prefix + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    private static boolean virtualThreadsAvailable() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException nsme) {
+            return false;
+        }
+    }
+
+    /*
+     * Equivalent of Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(prefix, 1).factory())
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor(String prefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 1L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+
+            Method newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) newThreadPerTaskExecutor.invoke(null, factory);
+
+        } catch (ReflectiveOperationException roe) {
+            String info = "Virtual threads are not available: " + roe.getMessage();
+            throw new IllegalStateException(info, roe);
+        }
+    }
+}
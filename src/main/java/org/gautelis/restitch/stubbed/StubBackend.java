@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2018 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.gautelis.restitch.stubbed;
+
+import com.google.gson.JsonObject;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wso2.msf4j.Request;
+
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A stubbed backend, with a number of endpoints each behaving as configured (at runtime).
+ * Endpoints not explicitly configured behave as the default endpoint.
+ */
+/* package private */ class StubBackend {
+    private static final Logger log = LoggerFactory.getLogger(StubBackend.class);
+
+    /* package private */ static final String DEFAULT_ENDPOINT = "";
+
+    // Used to drain request bodies
+    private static final ThreadLocal<byte[]> buffers = ThreadLocal.withInitial(() -> new byte[8192]);
+
+    private static class Endpoint {
+        private volatile StubBehaviour behaviour; // null if behaving as the default endpoint
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+
+        private Endpoint(StubBehaviour behaviour) {
+            this.behaviour = behaviour;
+        }
+    }
+
+    private final String name;
+    private final Endpoint defaultEndpoint;
+    private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+
+    /**
+     * @param name of backend, e.g. 'invoke-stub'
+     * @param behaviour initial behaviour of all endpoints
+     */
+    /* package private */ StubBackend(String name, StubBehaviour behaviour) {
+        this.name = name;
+        this.defaultEndpoint = new Endpoint(behaviour);
+        endpoints.put(DEFAULT_ENDPOINT, defaultEndpoint);
+    }
+
+    private Endpoint endpoint(String endpoint) {
+        Endpoint _endpoint = endpoints.get(endpoint);
+        if (null != _endpoint) {
+            return _endpoint;
+        }
+        return endpoints.computeIfAbsent(endpoint, e -> new Endpoint(null));
+    }
+
+    private StubBehaviour behaviourOf(Endpoint endpoint) {
+        StubBehaviour behaviour = endpoint.behaviour;
+        return null != behaviour ? behaviour : defaultEndpoint.behaviour;
+    }
+
+    /**
+     * Answers a call to endpoint, as configured.
+     * @param json true if (successful) calls are answered with JSON
+     */
+    /* package private */ Response call(String endpoint, Request request, boolean json) {
+        long size = 0L;
+        try (InputStream is = request.getMessageContentStream()) {
+            byte[] buffer = buffers.get();
+            int n;
+            while ((n = is.read(buffer)) >= 0) {
+                size += n;
+            }
+        } catch (IOException ioe) {
+            String info = "Could not read parameters: " + ioe.getMessage();
+            log.info(info);
+            return Response.status(500).type(MediaType.TEXT_PLAIN_TYPE).entity(info).build();
+        }
+
+        Endpoint _endpoint = endpoint(endpoint);
+        StubBehaviour behaviour = behaviourOf(_endpoint);
+        _endpoint.calls.increment();
+        log.trace("Stubbed call to {}/{} (got {} bytes)", name, endpoint, size);
+
+        long latency = behaviour.nextLatencyMillis();
+        if (latency > 0L) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(latency);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (behaviour.nextFails()) {
+            _endpoint.failures.increment();
+            return Response.status(behaviour.getFailureStatus()).type(MediaType.TEXT_PLAIN_TYPE).entity("Simulated failure").build();
+        }
+        if (json) {
+            return Response.ok(behaviour.reply(), MediaType.APPLICATION_JSON_TYPE).build();
+        }
+        return Response.ok().build();
+    }
+
+    /* package private */ Response getBehaviour(String endpoint) {
+        Endpoint _endpoint = endpoint(endpoint);
+        JsonObject json = behaviourOf(_endpoint).toJson();
+        json.addProperty("calls", _endpoint.calls.sum());
+        json.addProperty("failures", _endpoint.failures.sum());
+        return Response.ok(json.toString(), MediaType.APPLICATION_JSON_TYPE).build();
+    }
+
+    /**
+     * Replaces behaviour of endpoint. Replacing the behaviour of the default endpoint affects
+     * all endpoints not explicitly configured.
+     */
+    /* package private */ Response setBehaviour(String endpoint, Request request) {
+        StubBehaviour behaviour;
+        try (InputStream is = request.getMessageContentStream()) {
+            behaviour = StubBehaviour.parse(IOUtils.toString(is, StandardCharsets.UTF_8.name()));
+
+        } catch (IOException ioe) {
+            String info = "Could not read behaviour: " + ioe.getMessage();
+            log.info(info);
+            return Response.status(500).type(MediaType.TEXT_PLAIN_TYPE).entity(info).build();
+
+        } catch (IllegalArgumentException iae) {
+            return Response.status(400).type(MediaType.TEXT_PLAIN_TYPE).entity(iae.getMessage()).build();
+        }
+
+        endpoint(endpoint).behaviour = behaviour;
+        log.info("Stubbed backend {}/{} now behaves as {}", name, endpoint, behaviour.toJson());
+        return getBehaviour(endpoint);
+    }
+}
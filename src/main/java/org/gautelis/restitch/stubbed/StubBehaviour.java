@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2018 Frode Randers
+ * All rights reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.gautelis.restitch.stubbed;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How a stubbed backend behaves: how long it takes to answer, how often it fails (and with
+ * what status) and how large its replies are. Behaviours are immutable, and are replaced as
+ * a whole when changed.
+ * <p>
+ * Latency is either
+ * <ul>
+ *     <li>"fixed", at 'latencyMillis',</li>
+ *     <li>"uniform", between 'latencyMillis' and 'maxLatencyMillis', or</li>
+ *     <li>"long-tail", log-normally distributed with median 'latencyMillis' and shape 'latencySigma'
+ *     (the larger, the longer the tail), capped at 'maxLatencyMillis'.</li>
+ * </ul>
+ */
+public class StubBehaviour {
+    private static final Gson gson = new GsonBuilder().create();
+
+    private static final String FIXED = "fixed";
+    private static final String UNIFORM = "uniform";
+    private static final String LONG_TAIL = "long-tail";
+
+    String latency = FIXED;
+    Integer latencyMillis = null;
+    Integer maxLatencyMillis = null;
+    Double latencySigma = null;
+
+    Double failureRate = null;
+    Integer failureStatus = null;
+
+    // Approximate size of (successful) replies
+    Integer responseBytes = null;
+
+    // Prepared reply, not part of the behaviour as such
+    private transient String reply = null;
+
+    StubBehaviour() {}
+
+    /* package private */ StubBehaviour(double failureRate, int failureStatus) {
+        this.failureRate = failureRate;
+        this.failureStatus = failureStatus;
+        validate();
+    }
+
+    /**
+     * Parses (and validates) behaviour.
+     * @throws IllegalArgumentException if behaviour is not valid
+     */
+    /* package private */ static StubBehaviour parse(String json) {
+        StubBehaviour behaviour;
+        try {
+            behaviour = gson.fromJson(json, StubBehaviour.class);
+        } catch (JsonParseException jpe) {
+            String info = "Behaviour is not valid JSON: " + jpe.getMessage();
+            throw new IllegalArgumentException(info);
+        }
+        if (null == behaviour) {
+            throw new IllegalArgumentException("No behaviour");
+        }
+        behaviour.validate();
+        return behaviour;
+    }
+
+    private void validate() {
+        if (null == latency) {
+            latency = FIXED;
+        }
+        if (!FIXED.equals(latency) && !UNIFORM.equals(latency) && !LONG_TAIL.equals(latency)) {
+            String info = "Unknown latency distribution: \"" + latency + "\" (expected \"fixed\", \"uniform\" or \"long-tail\")";
+            throw new IllegalArgumentException(info);
+        }
+        if (getLatencyMillis() < 0 || getMaxLatencyMillis() < getLatencyMillis() || getLatencySigma() < 0.0) {
+            String info = "Latency must not be negative, nor exceed max latency, and sigma must not be negative";
+            throw new IllegalArgumentException(info);
+        }
+        if (getFailureRate() < 0.0 || getFailureRate() > 1.0 || getFailureStatus() < 400 || getFailureStatus() > 599) {
+            String info = "Failure rate must be between 0 and 1, and failure status must be an error status (4xx or 5xx)";
+            throw new IllegalArgumentException(info);
+        }
+        if (getResponseBytes() < 0) {
+            String info = "Response size must not be negative";
+            throw new IllegalArgumentException(info);
+        }
+        reply = prepareReply(getResponseBytes());
+    }
+
+    /*
+     * A JSON object, padded to (approximately) size.
+     */
+    private static String prepareReply(int size) {
+        final String head = "{\"key\":\"Key\",\"value\":\"";
+        final String tail = "\"}";
+        char[] padding = new char[Math.max(0, size - head.length() - tail.length())];
+        Arrays.fill(padding, 'x');
+        return head + new String(padding) + tail;
+    }
+
+    public String getLatency() {
+        return latency;
+    }
+
+    public int getLatencyMillis() {
+        return null != latencyMillis ? latencyMillis : 0;
+    }
+
+    public int getMaxLatencyMillis() {
+        if (null != maxLatencyMillis) {
+            return maxLatencyMillis;
+        }
+        return LONG_TAIL.equals(latency) ? Math.max(getLatencyMillis(), 60_000) : getLatencyMillis();
+    }
+
+    public double getLatencySigma() {
+        return null != latencySigma ? latencySigma : 1.0;
+    }
+
+    public double getFailureRate() {
+        return null != failureRate ? failureRate : 0.0;
+    }
+
+    public int getFailureStatus() {
+        return null != failureStatus ? failureStatus : 598;
+    }
+
+    public int getResponseBytes() {
+        return null != responseBytes ? responseBytes : 64;
+    }
+
+    /* package private */ String reply() {
+        return reply;
+    }
+
+    /**
+     * @return latency of a call, drawn from distribution
+     */
+    /* package private */ long nextLatencyMillis() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        switch (latency) {
+            case UNIFORM:
+                return getLatencyMillis() + random.nextInt(getMaxLatencyMillis() - getLatencyMillis() + 1);
+
+            case LONG_TAIL:
+                double sample = getLatencyMillis() * Math.exp(getLatencySigma() * random.nextGaussian());
+                return Math.min(getMaxLatencyMillis(), Math.round(sample));
+
+            default:
+                return getLatencyMillis();
+        }
+    }
+
+    /**
+     * @return true if a call should fail
+     */
+    /* package private */ boolean nextFails() {
+        return getFailureRate() > 0.0 && ThreadLocalRandom.current().nextDouble() < getFailureRate();
+    }
+
+    /**
+     * @return behaviour, as JSON (with defaults filled in)
+     */
+    /* package private */ JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        json.addProperty("latency", getLatency());
+        json.addProperty("latencyMillis", getLatencyMillis());
+        json.addProperty("maxLatencyMillis", getMaxLatencyMillis());
+        json.addProperty("latencySigma", getLatencySigma());
+        json.addProperty("failureRate", getFailureRate());
+        json.addProperty("failureStatus", getFailureStatus());
+        json.addProperty("responseBytes", getResponseBytes());
+        return json;
+    }
+}
@@ -18,24 +18,13 @@
 package org.gautelis.restitch.stubbed;
 
 import io.swagger.annotations.*;
-import org.apache.commons.io.IOUtils;
-import org.gautelis.restitch.ProcessService;
-import org.gautelis.restitch.ProcessSpecification;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import org.wso2.carbon.metrics.core.annotation.Timed;
 import org.wso2.msf4j.Request;
 
-import javax.ws.rs.Consumes;
-import javax.ws.rs.POST;
-import javax.ws.rs.Path;
-import javax.ws.rs.Produces;
+import javax.ws.rs.*;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
-import java.io.IOException;
-import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
 
 @Api(value = "compensate-stub")
 @SwaggerDefinition(
@@ -51,10 +40,8 @@ import java.nio.charset.StandardCharsets;
 )
 @Path("/compensate-stub")
 public class StubbedCompensationService {
-    private static final Logger log = LoggerFactory.getLogger(StubbedCompensationService.class);
-
-    private static long counter = 0L;
-    private static final double backwardFailureProbability = 0.01;
+    // Shared by all instances of the service, so that behaviour survives across requests
+    private static final StubBackend backend = new StubBackend("compensate-stub", new StubBehaviour(0.01, 598));
 
     public StubbedCompensationService() {
     }
@@ -64,7 +51,7 @@ public class StubbedCompensationService {
      * <p>
      * curl -v -X POST -H "Content-Type:application/json" \
      * -d '{"pizzaId":101,"ingredients":["flour","eggs","milk","salt","small nasty chickins"],"pizzaName":"Chichen (P)itza"}' \
-     * http://localhost:8080/fetch-stub
+     * http://localhost:8080/compensate-stub
      * <p>
      */
     @POST
@@ -77,29 +64,124 @@ public class StubbedCompensationService {
     @Produces({MediaType.TEXT_PLAIN})
     @ApiResponses(value = {
             @ApiResponse(code = 200 /* OK */, message = "OK"),
-            @ApiResponse(code = 598 /* Process failure */, message = "Failed to process request")})
+            @ApiResponse(code = 598 /* Process failure */, message = "Simulated failure (status as configured)")})
     public Response compensate(
             @ApiParam(value = "ActionParameters", required = true) @Context Request parameters
     ) {
-        String payload;
-        try (InputStream is = parameters.getMessageContentStream()) {
-            payload = IOUtils.toString(is, StandardCharsets.UTF_8.name());
+        return backend.call(StubBackend.DEFAULT_ENDPOINT, parameters, false);
+    }
 
-        } catch (IOException ioe) {
-            String info = "Could not read parameters: " + ioe.getMessage();
-            log.info(info);
-            return Response.status(500).type(MediaType.TEXT_PLAIN_TYPE).entity(info).build();
-        }
+    /**
+     * Stubbed behaviour for compensating activity at a named endpoint, with the provided parameter(s).
+     * Each endpoint behaves as configured, or as the default endpoint if not configured.
+     * <p>
+     * curl -v -X POST -H "Content-Type:application/json" \
+     * -d '{"pizzaId":101,"ingredients":["flour","eggs","milk","salt","small nasty chickins"],"pizzaName":"Chichen (P)itza"}' \
+     * http://localhost:8080/compensate-stub/slow-pizza-oven
+     * <p>
+     */
+    @POST
+    @Timed
+    @Path("/{endpoint}")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @ApiOperation(
+            value = "Compensate stub at endpoint",
+            notes = "Compensates failed activity, at a named endpoint")
+    @Produces({MediaType.TEXT_PLAIN})
+    @ApiResponses(value = {
+            @ApiResponse(code = 200 /* OK */, message = "OK"),
+            @ApiResponse(code = 598 /* Process failure */, message = "Simulated failure (status as configured)")})
+    public Response compensateAtEndpoint(
+            @ApiParam(value = "Endpoint", required = true) @PathParam("endpoint") String endpoint,
+            @ApiParam(value = "ActionParameters", required = true) @Context Request parameters
+    ) {
+        return backend.call(endpoint, parameters, false);
+    }
 
-        System.out.println("STUBBED compensation " + (++counter) + " (got " + payload.getBytes().length + " bytes)");
+    /**
+     * Current behaviour of the default endpoint, together with number of calls and failures so far.
+     * <p>
+     * curl -v http://localhost:8080/compensate-stub/behaviour
+     * <p>
+     */
+    @GET
+    @Path("/behaviour")
+    @ApiOperation(
+            value = "Get behaviour",
+            notes = "Returns behaviour of the default endpoint")
+    @Produces({MediaType.APPLICATION_JSON})
+    @ApiResponses(value = {
+            @ApiResponse(code = 200 /* OK */, message = "OK")})
+    public Response getBehaviour() {
+        return backend.getBehaviour(StubBackend.DEFAULT_ENDPOINT);
+    }
 
-        if (!(Math.random() < backwardFailureProbability)) {
-            return Response.ok().build();
-        }
-        else {
-            String info = "Simulated compensation failure";
-            return Response.status(598).type(MediaType.TEXT_PLAIN_TYPE).entity(info).build();
-        }
+    /**
+     * Current behaviour of a named endpoint, together with number of calls and failures so far.
+     * <p>
+     * curl -v http://localhost:8080/compensate-stub/behaviour/slow-pizza-oven
+     * <p>
+     */
+    @GET
+    @Path("/behaviour/{endpoint}")
+    @ApiOperation(
+            value = "Get behaviour of endpoint",
+            notes = "Returns behaviour of a named endpoint")
+    @Produces({MediaType.APPLICATION_JSON})
+    @ApiResponses(value = {
+            @ApiResponse(code = 200 /* OK */, message = "OK")})
+    public Response getBehaviour(
+            @ApiParam(value = "Endpoint", required = true) @PathParam("endpoint") String endpoint
+    ) {
+        return backend.getBehaviour(endpoint);
     }
-}
 
+    /**
+     * Replaces behaviour of the default endpoint (and thereby of all endpoints not explicitly configured).
+     * <p>
+     * curl -v -X PUT -H "Content-Type:application/json" \
+     * -d '{"latency":"long-tail","latencyMillis":20,"failureRate":0.05,"failureStatus":503,"responseBytes":1024}' \
+     * http://localhost:8080/compensate-stub/behaviour
+     * <p>
+     */
+    @PUT
+    @Path("/behaviour")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @ApiOperation(
+            value = "Set behaviour",
+            notes = "Replaces behaviour of the default endpoint")
+    @Produces({MediaType.APPLICATION_JSON, MediaType.TEXT_PLAIN})
+    @ApiResponses(value = {
+            @ApiResponse(code = 200 /* OK */, message = "OK"),
+            @ApiResponse(code = 400 /* Bad Request */, message = "Invalid behaviour")})
+    public Response setBehaviour(
+            @ApiParam(value = "Behaviour", required = true) @Context Request behaviour
+    ) {
+        return backend.setBehaviour(StubBackend.DEFAULT_ENDPOINT, behaviour);
+    }
+
+    /**
+     * Replaces behaviour of a named endpoint.
+     * <p>
+     * curl -v -X PUT -H "Content-Type:application/json" \
+     * -d '{"latency":"uniform","latencyMillis":100,"maxLatencyMillis":500}' \
+     * http://localhost:8080/compensate-stub/behaviour/slow-pizza-oven
+     * <p>
+     */
+    @PUT
+    @Path("/behaviour/{endpoint}")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @ApiOperation(
+            value = "Set behaviour of endpoint",
+            notes = "Replaces behaviour of a named endpoint")
+    @Produces({MediaType.APPLICATION_JSON, MediaType.TEXT_PLAIN})
+    @ApiResponses(value = {
+            @ApiResponse(code = 200 /* OK */, message = "OK"),
+            @ApiResponse(code = 400 /* Bad Request */, message = "Invalid behaviour")})
+    public Response setBehaviour(
+            @ApiParam(value = "Endpoint", required = true) @PathParam("endpoint") String endpoint,
+            @ApiParam(value = "Behaviour", required = true) @Context Request behaviour
+    ) {
+        return backend.setBehaviour(endpoint, behaviour);
+    }
+}